@@ -0,0 +1,117 @@
+package com;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Stream;
+
+//File di prova e server per i benchmark: il server non viene avviato, i metodi vengono chiamati direttamente.
+final class BenchmarkFiles {
+
+    //Lunghezza media delle righe (terminatore compreso) per le distribuzioni fixed e uniform.
+    private static final int AVERAGE_LINE = 64;
+
+    private BenchmarkFiles() {
+    }
+
+    //"512B", "1KB", "100MB", "2GB" --> byte
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+
+        if (s.endsWith("GB")) {
+            unit = 1L << 30;
+        } else if (s.endsWith("MB")) {
+            unit = 1L << 20;
+        } else if (s.endsWith("KB")) {
+            unit = 1L << 10;
+        }
+
+        return Long.parseLong(s.replaceAll("[A-Z]+$", "")) * unit;
+    }
+
+    //Scrive in dir un file di circa size byte terminati da '\n'. Distribuzioni delle lunghezze di riga:
+    //fixed (tutte uguali: gli swap sono sempre sul posto), uniform (da 1 a 2 volte la media),
+    //skewed (quasi tutte corte, una su cento lunga qualche KB).
+    static Path generate(Path dir, long size, String distribution, long seed) throws IOException {
+        Path file = dir.resolve("bench-" + distribution + "-" + size + ".txt");
+        Random rnd = new Random(seed);
+
+        //Blocco di testo da cui prendere i contenuti, per non generare ogni byte.
+        byte[] text = new byte[1 << 13];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + rnd.nextInt(26));
+        }
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+            long written = 0;
+
+            while (written < size) {
+                int length = lineLength(distribution, rnd);
+                int content = (int) Math.min(length - 1, Math.max(size - written - 1, 0));
+                int offset = rnd.nextInt(text.length - content);
+
+                out.write(text, offset, content);
+                out.write('\n');
+                written += content + 1;
+            }
+        }
+
+        return file;
+    }
+
+    private static int lineLength(String distribution, Random rnd) {
+        switch (distribution) {
+            case "fixed":
+                return AVERAGE_LINE;
+            case "uniform":
+                return 2 + rnd.nextInt(2 * AVERAGE_LINE - 2);
+            case "skewed":
+                return rnd.nextInt(100) == 0 ? 1024 + rnd.nextInt(3072) : 8 + rnd.nextInt(32);
+            default:
+                throw new IllegalArgumentException("Distribuzione sconosciuta: " + distribution);
+        }
+    }
+
+    //Motori: channel (FileChannel posizionale), mmap (file mappato), lazy (swap differiti sulla permutazione
+    //logica, senza compattatore).
+    static RowSwapServer open(Path file, String engine) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+
+        //Porta 0: la socket non viene mai usata.
+        RowSwapServer server = new RowSwapServer(loopback, 0, loopback, 0, file.toString());
+
+        server.setMappedMode(engine.equals("mmap"));
+        server.setDeferredMode(engine.equals("lazy"), false, Long.MAX_VALUE, Integer.MAX_VALUE);
+        //Le misure di countLines devono scandire sempre il file.
+        server.setIndexSnapshotEnabled(false);
+        server.checkFileValidity();
+        server.countLines();
+        server.initDeferredMode();
+
+        if (!server.isFileValid()) {
+            server.close();
+            throw new IOException("File non valido: " + file);
+        }
+
+        return server;
+    }
+
+    //Le riscritture creano il file temporaneo nella directory corrente: i file di prova stanno lì accanto,
+    //così Files.move resta una rinomina come in esercizio.
+    static Path createDirectory() throws IOException {
+        return Files.createTempDirectory(Path.of("").toAbsolutePath(), "rsbench");
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+//Costo di RowSwapServer.countLines (riapertura del file e costruzione dell'indice degli offset).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CountLinesBenchmark {
+
+    @Param({"1KB", "1MB", "100MB", "2GB"})
+    public String size;
+
+    @Param({"fixed", "uniform", "skewed"})
+    public String lines;
+
+    @Param({"channel", "mmap"})
+    public String engine;
+
+    private Path dir;
+    private RowSwapServer server;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchmarkFiles.createDirectory();
+        server = BenchmarkFiles.open(BenchmarkFiles.generate(dir, BenchmarkFiles.parseSize(size), lines, 42), engine);
+    }
+
+    @Benchmark
+    public int countLines() {
+        server.countLines();
+        return server.getFileLineCount();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        BenchmarkFiles.delete(dir);
+    }
+}
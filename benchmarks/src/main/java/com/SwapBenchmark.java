@@ -0,0 +1,92 @@
+package com;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Costo di un singolo RowSwapServer.swap, senza rete, al variare di dimensione del file, lunghezze di riga,
+//distanza tra le righe scambiate e motore. Con righe di lunghezza diversa (uniform, skewed) i motori
+//channel e mmap riscrivono tutto il file a ogni swap; lazy aggiorna solo la permutazione logica.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SwapBenchmark {
+
+    //Coppie precalcolate, usate a rotazione.
+    private static final int PAIRS = 1024;
+
+    @Param({"1KB", "1MB", "100MB", "2GB"})
+    public String size;
+
+    @Param({"fixed", "uniform", "skewed"})
+    public String lines;
+
+    //adjacent: righe vicine; far: a metà file di distanza; random: uniformi.
+    @Param({"adjacent", "far", "random"})
+    public String pattern;
+
+    @Param({"channel", "mmap", "lazy"})
+    public String engine;
+
+    private Path dir;
+    private RowSwapServer server;
+    private int[] pairs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchmarkFiles.createDirectory();
+        server = BenchmarkFiles.open(BenchmarkFiles.generate(dir, BenchmarkFiles.parseSize(size), lines, 42), engine);
+
+        int count = server.getFileLineCount();
+        Random rnd = new Random(7);
+        pairs = new int[2 * PAIRS];
+
+        for (int i = 0; i < PAIRS; i++) {
+            int riga1;
+            int riga2;
+
+            switch (pattern) {
+                case "adjacent":
+                    riga1 = rnd.nextInt(count - 1);
+                    riga2 = riga1 + 1;
+                    break;
+                case "far":
+                    riga1 = rnd.nextInt(count / 2);
+                    riga2 = riga1 + count / 2;
+                    break;
+                case "random":
+                    //Righe uguali non toccano il file: le riestraggo per non falsare la misura.
+                    riga1 = rnd.nextInt(count);
+                    do {
+                        riga2 = rnd.nextInt(count);
+                    } while (riga2 == riga1);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Pattern sconosciuto: " + pattern);
+            }
+
+            pairs[2 * i] = riga1;
+            pairs[2 * i + 1] = riga2;
+        }
+    }
+
+    @Benchmark
+    public String swap() {
+        int i = next;
+        next = (next + 2) % pairs.length;
+        return server.swap(pairs[i], pairs[i + 1]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        BenchmarkFiles.delete(dir);
+    }
+}
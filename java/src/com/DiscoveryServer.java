@@ -2,9 +2,14 @@ package com;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DiscoveryServer {
 
@@ -47,15 +52,37 @@ public class DiscoveryServer {
         private final DatagramSocket socket;
         private final DatagramPacket packet;
         private final byte buf[] = new byte[256];
+        private final byte replyBuf[] = new byte[256];
 
         public DSClientHandler(DiscoveryServer reference, int clientPort) throws SocketException {
+            this(reference, clientPort, false);
+        }
+
+        //Con reusePort più handler possono fare bind sulla stessa porta: il kernel distribuisce i datagrammi.
+        public DSClientHandler(DiscoveryServer reference, int clientPort, boolean reusePort) throws SocketException {
             this.reference = reference;
             this.myThread = new Thread(this);
             this.port = clientPort;
-            this.socket = new DatagramSocket(clientPort);
+            this.socket = reusePort ? openReusePortSocket(clientPort) : new DatagramSocket(clientPort);
             this.packet = new DatagramPacket(buf, 0, buf.length);
         }
 
+        private DatagramSocket openReusePortSocket(int port) throws SocketException {
+            DatagramSocket socket = new DatagramSocket(null);
+
+            try {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                socket.close();
+                SocketException ex = new SocketException("Impossibile aprire la porta " + port + " con SO_REUSEPORT");
+                ex.initCause(e);
+                throw ex;
+            }
+
+            return socket;
+        }
+
         public void start() {
             myThread.start();
         }
@@ -77,51 +104,62 @@ public class DiscoveryServer {
             //preparo strutture per lettura/scrittura dati
             String richiesta = null;
 
-            while (true) {
+            while (!reference.closed) {
                 packet.setData(buf, 0, buf.length); //devo risettare ciclicamente il buffer del pacchetto
 
                 try {
                     //mi pongo in attesa di un packet da parte di un client
                     socket.receive(packet);
                 } catch (IOException e) {
+                    //close() chiude la socket per farmi uscire da receive.
+                    if (reference.closed) {
+                        break;
+                    }
                     e.printStackTrace();
                     System.exit(RECEIVE_ERR);
                 }
 
-                try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
-                    //leggo nome file inviato dal client --> risponderò con la corrispettiva porta (se corretto)
-                    richiesta = diStream.readUTF();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.exit(DECODE_REQUEST_ERR);
-                }
-
-                try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
-                    InetAddressPortWrapper wrapper = getAddressPortByFilename(richiesta); //trovo porta corrisp. se esiste
-                    if (wrapper == null) { //se il file non esiste lo comunico
-                        doStream.writeUTF("Il file richiesto non esiste, quindi non c'è una porta corrispondente\n");
-                    } else { //altrimenti restituisco la porta corrisp.
-                        doStream.writeUTF(wrapper.getAddress().getHostAddress() + ":" + wrapper.getPort());
+                if (Protocol.isBinary(packet.getData(), 0, packet.getLength())) {
+                    //Richiesta binaria (vedi Protocol): rispondo nello stesso formato.
+                    ByteBuffer reply = ByteBuffer.wrap(replyBuf);
+                    reference.handleBinaryRequest(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), reply, false);
+                    packet.setData(replyBuf, 0, reply.position());
+                } else {
+                    try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
+                        //leggo nome file inviato dal client --> risponderò con la corrispettiva porta (se corretto)
+                        richiesta = diStream.readUTF();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(DECODE_REQUEST_ERR);
                     }
 
-                    //setto il contenuto della risposta
-                    packet.setData(boStream.toByteArray());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.exit(ENCODE_RESPONSE_ERR);
+                    try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
+                        doStream.writeUTF(reference.answerClient(richiesta)); //trovo porta corrisp. se esiste
+
+                        //setto il contenuto della risposta
+                        packet.setData(boStream.toByteArray());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(ENCODE_RESPONSE_ERR);
+                    }
                 }
 
                 try {
                     socket.send(packet); //invio risposta
                 } catch (IOException e) {
+                    if (reference.closed) {
+                        break;
+                    }
                     e.printStackTrace();
                     System.exit(SEND_ERR);
                 }
 
             }
+        }
 
-            //Chiudo le risorse.
-            //socket.close();
+        //Chiamato da close(): sblocca receive.
+        private void close() {
+            socket.close();
         }
     }
 
@@ -135,6 +173,7 @@ public class DiscoveryServer {
         private final DatagramSocket socket;
         private final DatagramPacket packet;
         private final byte buf[] = new byte[256];
+        private final byte replyBuf[] = new byte[256];
 
         public DSRowSwapHandler(DiscoveryServer reference, int rowSwapPort) throws SocketException {
             this.reference = reference;
@@ -160,92 +199,220 @@ public class DiscoveryServer {
             return port;
         }
 
+        //Chiamato da close(): sblocca receive.
+        private void close() {
+            socket.close();
+        }
+
         @Override
         public void run() {
             //preparo strutture per lettura/scrittura dati
             String request = null;
-            int response = RESULT_OK;
+            int response;
 
-            while (true) {
+            while (!reference.closed) {
                 packet.setData(buf, 0, buf.length); //devo risettare ciclicamente il buffer del pacchetto
 
                 try {
                     //mi pongo in attesa di un packet da parte di un client
                     socket.receive(packet);
                 } catch (IOException e) {
+                    //close() chiude la socket per farmi uscire da receive.
+                    if (reference.closed) {
+                        break;
+                    }
                     e.printStackTrace();
                     System.exit(RECEIVE_ERR);
                 }
 
-                try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
-                    //Leggo la richiesta
-                    request = diStream.readUTF();
+                if (Protocol.isBinary(packet.getData(), 0, packet.getLength())) {
+                    //Richiesta binaria (vedi Protocol): rispondo nello stesso formato.
+                    ByteBuffer reply = ByteBuffer.wrap(replyBuf);
+                    reference.handleBinaryRequest(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), reply, true);
+                    packet.setData(replyBuf, 0, reply.position());
+                } else {
+                    try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
+                        //Leggo la richiesta
+                        request = diStream.readUTF();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(DECODE_REQUEST_ERR);
+                    }
+
+                    //Decodifico la richiesta, la eseguo e preparo una risposta.
+                    response = reference.handleRowSwapRequest(request);
+
+                    try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
+                        doStream.writeInt(response);
+                        //setto il contenuto della risposta
+                        packet.setData(boStream.toByteArray());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(ENCODE_RESPONSE_ERR);
+                    }
+                }
+
+                try {
+                    socket.send(packet); //invio risposta
                 } catch (IOException e) {
+                    if (reference.closed) {
+                        break;
+                    }
                     e.printStackTrace();
-                    System.exit(DECODE_REQUEST_ERR);
+                    System.exit(SEND_ERR);
                 }
+            }
+        }
+    }
+
+    //Alternativa ai due handler: un solo thread serve entrambe le porte con un Selector su DatagramChannel
+    //non bloccanti. I buffer (diretti) sono allocati una volta sola e a ogni risveglio vengono smaltiti
+    //tutti i datagrammi pronti su ciascun canale.
+    //Con più reactor sulla stessa porta client (SO_REUSEPORT) solo il primo serve anche la porta row swap.
+    private class DSReactor implements Runnable {
+
+        private final DiscoveryServer reference;
+
+        private final Thread myThread;
+
+        private final Selector selector;
+        private final DatagramChannel clientChannel;
+        private final DatagramChannel rowSwapChannel;
+        private final int clientPort;
+        private final int rowSwapPort;
+
+        private final ByteBuffer in = ByteBuffer.allocateDirect(256);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(256);
+
+        public DSReactor(DiscoveryServer reference, int clientPort, int rowSwapPort) throws IOException {
+            this(reference, clientPort, rowSwapPort, false);
+        }
+
+        //rowSwapPort < 0: il reactor serve solo la porta client.
+        public DSReactor(DiscoveryServer reference, int clientPort, int rowSwapPort, boolean reusePort) throws IOException {
+            this.reference = reference;
+            this.myThread = new Thread(this);
+            this.clientPort = clientPort;
+            this.rowSwapPort = rowSwapPort;
+            this.selector = Selector.open();
+            this.clientChannel = openChannel(clientPort, reusePort);
+            this.rowSwapChannel = rowSwapPort < 0 ? null : openChannel(rowSwapPort, false);
+        }
+
+        private DatagramChannel openChannel(int port, boolean reusePort) throws IOException {
+            DatagramChannel channel = DatagramChannel.open();
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            return channel;
+        }
 
-                //Decodifico la richiesta, la eseguo e preparo una risposta.
-                StringTokenizer tokenizer = new StringTokenizer(request, ":");
-                //Resetto la risposta.
-                response = RESULT_OK;
+        public void start() {
+            myThread.start();
+        }
 
+        public void join() throws InterruptedException {
+            myThread.join();
+        }
 
+        public void join(long millis) throws InterruptedException {
+            myThread.join(millis);
+        }
+
+        public int getClientPort() {
+            return clientPort;
+        }
+
+        public int getRowSwapPort() {
+            return rowSwapPort;
+        }
+
+        @Override
+        public void run() {
+            while (!reference.closed) {
                 try {
-                    String cmd = tokenizer.nextToken();
-                    String filename = tokenizer.nextToken();
-                    String address = tokenizer.nextToken();
-                    int port = Integer.parseInt(tokenizer.nextToken());
-                    InetAddressPortWrapper wrapper = new InetAddressPortWrapper(address, port);
-
-
-                    //Parsing
-                    if (cmd.equalsIgnoreCase(CMD_REGISTER)) {
-                        //Verifico la disponibilità del filename
-                        if (!reference.isFilenameInUse(filename)) {
-                            //Verifico la disponibilità della porta.
-                            if (!reference.isAddressPortInUse(wrapper)) {
-                                //Allora posso registrare il row swap server
-                                reference.putFilenamePortPair(filename, wrapper);
-                                System.out.println("Registrato: " + filename + "; " + wrapper);
-                            } else {
-                                response = RESULT_PAIR_IN_USE;
-                            }
-                        } else {
-                            response = RESULT_FILENAME_IN_USE;
-                        }
-                    } else if (cmd.equalsIgnoreCase(CMD_DISMISS)) {
-                        //Verifico la disponibilità del filename.
-                        if (reference.isFilenameInUse(filename)) {
-                            //Verifico che filename e porta coincidino
-                            if (reference.getAddressPortByFilename(filename).equals(wrapper)) {
-                                //Allora posso cancellare il row swap server
-                                reference.removeFilenamePortPair(filename);
-                                System.out.println("Cancellato: " + filename + "; " + wrapper);
-                            } else {
-                                response = RESULT_PAIR_NOT_CONSISTENT;
-                            }
-                        } else {
-                            response = RESULT_FILENAME_NOT_IN_USE;
-                        }
-                    } else {
-                        response = RESULT_UNKNOWN_COMMAND;
-                    }
-                } catch (NoSuchElementException | NumberFormatException | UnknownHostException e) {
-                    response = RESULT_MALFORMED_REQUEST;
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(RECEIVE_ERR);
                 }
 
-                try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
-                    doStream.writeInt(response);
-                    //setto il contenuto della risposta
-                    packet.setData(boStream.toByteArray());
+                for (SelectionKey key : selector.selectedKeys()) {
+                    drain((DatagramChannel) key.channel());
+                }
+
+                selector.selectedKeys().clear();
+            }
+
+            //Chiudo le risorse qui, non da close(): i canali non si chiudono a metà di un drain.
+            try {
+                selector.close();
+                clientChannel.close();
+                if (rowSwapChannel != null) rowSwapChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //Chiamato da close(): sveglia select, il ciclo vede il flag ed esce.
+        private void close() {
+            selector.wakeup();
+        }
+
+        //Serve tutti i datagrammi già arrivati sul canale.
+        private void drain(DatagramChannel channel) {
+            while (true) {
+                SocketAddress sender;
+                String richiesta = null;
+
+                in.clear();
+
+                try {
+                    sender = channel.receive(in);
                 } catch (IOException e) {
                     e.printStackTrace();
-                    System.exit(ENCODE_RESPONSE_ERR);
+                    System.exit(RECEIVE_ERR);
+                    return;
+                }
+
+                //Nessun altro datagramma pronto.
+                if (sender == null) {
+                    return;
+                }
+
+                in.flip();
+                out.clear();
+
+                if (Protocol.isBinary(in)) {
+                    //Richiesta binaria (vedi Protocol): rispondo nello stesso formato.
+                    reference.handleBinaryRequest(in, out, channel != clientChannel);
+                } else {
+                    try {
+                        richiesta = readUTF(in);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(DECODE_REQUEST_ERR);
+                    }
+
+                    try {
+                        if (channel == clientChannel) {
+                            writeUTF(out, reference.answerClient(richiesta));
+                        } else {
+                            out.putInt(reference.handleRowSwapRequest(richiesta));
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(ENCODE_RESPONSE_ERR);
+                    }
                 }
 
+                out.flip();
+
                 try {
-                    socket.send(packet); //invio risposta
+                    channel.send(out, sender); //invio risposta
                 } catch (IOException e) {
                     e.printStackTrace();
                     System.exit(SEND_ERR);
@@ -254,10 +421,75 @@ public class DiscoveryServer {
         }
     }
 
+    //Legge una stringa nel formato di DataOutputStream.writeUTF (lunghezza su 2 byte + UTF-8 modificato).
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            throw new EOFException("Richiesta troppo corta");
+        }
+
+        int length = buffer.getShort() & 0xFFFF;
+
+        if (buffer.remaining() < length) {
+            throw new EOFException("Richiesta troncata");
+        }
+
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+
+        while (buffer.position() < end) {
+            int c = buffer.get() & 0xFF;
+
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+            } else if ((c & 0xE0) == 0xC0 && buffer.position() < end) {
+                chars[count++] = (char) (((c & 0x1F) << 6) | (buffer.get() & 0x3F));
+            } else if ((c & 0xF0) == 0xE0 && buffer.position() + 1 < end) {
+                chars[count++] = (char) (((c & 0x0F) << 12) | ((buffer.get() & 0x3F) << 6) | (buffer.get() & 0x3F));
+            } else {
+                throw new UTFDataFormatException("Richiesta non in UTF-8 modificato");
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+    //Scrive una stringa nel formato di DataOutputStream.writeUTF.
+    private static void writeUTF(ByteBuffer buffer, String string) throws IOException {
+        int start = buffer.position();
+
+        if (buffer.remaining() < 2) {
+            throw new UTFDataFormatException("Risposta troppo lunga");
+        }
+
+        buffer.position(start + 2);
+
+        try {
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+
+                if (c >= 0x0001 && c <= 0x007F) {
+                    buffer.put((byte) c);
+                } else if (c <= 0x07FF) {
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else {
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        } catch (BufferOverflowException e) {
+            throw new UTFDataFormatException("Risposta troppo lunga");
+        }
+
+        buffer.putShort(start, (short) (buffer.position() - start - 2));
+    }
+
     //Immutable Object
     private class InetAddressPortWrapper {
-        private InetAddress address;
-        private int port;
+        private final InetAddress address;
+        private final int port;
 
         public InetAddressPortWrapper(String address, int port) throws UnknownHostException {
             this(InetAddress.getByName(address), port);
@@ -286,91 +518,382 @@ public class DiscoveryServer {
             return false;
         }
 
+        @Override
+        public int hashCode() {
+            return 31 * address.hashCode() + port;
+        }
+
         @Override
         public String toString() {
             return "(" + address + ":" + port + ')';
         }
     }
 
-    private final HashMap<String, InetAddressPortWrapper> mappaAddressPortRowSwapServer = new HashMap<>();
+    //Registro concorrente: le ricerche dei client non si bloccano mai sulle registrazioni.
+    //L'indice inverso (indirizzo, porta) --> filename rende O(1) i controlli di REGISTER/DISMISS.
+    private final ConcurrentHashMap<String, InetAddressPortWrapper> mappaAddressPortRowSwapServer = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddressPortWrapper, String> mappaFilenameByAddressPort = new ConcurrentHashMap<>();
 
-    private final DSClientHandler clientHandler;
+    //Più handler/reactor condividono la porta client solo con SO_REUSEPORT.
+    private final DSClientHandler[] clientHandlers;
     private final DSRowSwapHandler rowSwapHandler;
+    //Presenti solo in modalità NIO, al posto degli handler; il primo serve anche la porta row swap.
+    private final DSReactor[] reactors;
 
+    private volatile boolean closed = false;
 
     public DiscoveryServer(int clientPort, int rowSwapPort) throws SocketException {
-        this.clientHandler = new DSClientHandler(this, clientPort);
+        this.clientHandlers = new DSClientHandler[]{new DSClientHandler(this, clientPort)};
         this.rowSwapHandler = new DSRowSwapHandler(this, rowSwapPort);
+        this.reactors = null;
+    }
+
+    //Con nio == true entrambe le porte sono servite da un solo thread con un Selector.
+    public DiscoveryServer(int clientPort, int rowSwapPort, boolean nio) throws IOException {
+        this(clientPort, rowSwapPort, nio, 1);
+    }
+
+    //Con clientThreads > 1 la porta client è aperta clientThreads volte con SO_REUSEPORT, ognuna col suo thread
+    //(o reactor): il kernel distribuisce le richieste tra i socket e tutti condividono lo stesso registro.
+    public DiscoveryServer(int clientPort, int rowSwapPort, boolean nio, int clientThreads) throws IOException {
+        if (clientThreads < 1) {
+            throw new IllegalArgumentException("Numero di thread client non valido: " + clientThreads);
+        }
+
+        boolean reusePort = clientThreads > 1;
+
+        if (reusePort && !isReusePortSupported()) {
+            throw new UnsupportedOperationException("SO_REUSEPORT non supportato su questa piattaforma");
+        }
+
+        if (nio) {
+            this.clientHandlers = null;
+            this.rowSwapHandler = null;
+            this.reactors = new DSReactor[clientThreads];
+            for (int i = 0; i < clientThreads; i++) {
+                this.reactors[i] = new DSReactor(this, clientPort, i == 0 ? rowSwapPort : -1, reusePort);
+            }
+        } else {
+            this.clientHandlers = new DSClientHandler[clientThreads];
+            for (int i = 0; i < clientThreads; i++) {
+                this.clientHandlers[i] = new DSClientHandler(this, clientPort, reusePort);
+            }
+            this.rowSwapHandler = new DSRowSwapHandler(this, rowSwapPort);
+            this.reactors = null;
+        }
+    }
+
+    public static boolean isReusePortSupported() {
+        try (DatagramSocket socket = new DatagramSocket(null)) {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (SocketException e) {
+            return false;
+        }
     }
 
     public void start() {
-        clientHandler.start();
+        if (reactors != null) {
+            for (DSReactor reactor : reactors) {
+                reactor.start();
+            }
+            return;
+        }
+
+        for (DSClientHandler clientHandler : clientHandlers) {
+            clientHandler.start();
+        }
         rowSwapHandler.start();
     }
 
     public void join() throws InterruptedException {
-        clientHandler.join();
+        if (reactors != null) {
+            for (DSReactor reactor : reactors) {
+                reactor.join();
+            }
+            return;
+        }
+
+        for (DSClientHandler clientHandler : clientHandlers) {
+            clientHandler.join();
+        }
         rowSwapHandler.join();
     }
 
+    //Ferma gli handler (o i reactor): dopo join() le porte sono libere.
+    public void close() {
+        closed = true;
+
+        if (reactors != null) {
+            for (DSReactor reactor : reactors) {
+                reactor.close();
+            }
+            return;
+        }
+
+        for (DSClientHandler clientHandler : clientHandlers) {
+            clientHandler.close();
+        }
+        rowSwapHandler.close();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
     public void putFilenamePortPair(String filename, InetAddressPortWrapper wrapper) {
         if (isPortValid(wrapper.getPort())) {
-            synchronized (mappaAddressPortRowSwapServer) {
-                mappaAddressPortRowSwapServer.put(filename, wrapper);
+            InetAddressPortWrapper old = mappaAddressPortRowSwapServer.put(filename, wrapper);
+            if (old != null) {
+                mappaFilenameByAddressPort.remove(old, filename);
             }
+            mappaFilenameByAddressPort.put(wrapper, filename);
         }
     }
 
     public void removeFilenamePortPair(String filename) {
-        synchronized (mappaAddressPortRowSwapServer) {
-            mappaAddressPortRowSwapServer.remove(filename);
+        InetAddressPortWrapper old = mappaAddressPortRowSwapServer.remove(filename);
+        if (old != null) {
+            mappaFilenameByAddressPort.remove(old, filename);
+        }
+    }
+
+    //Registra il row swap server se né il filename né la coppia indirizzo/porta sono già in uso.
+    //Il controllo e l'inserimento sono atomici anche con registrazioni concorrenti.
+    public int registerRowSwapServer(String filename, InetAddressPortWrapper wrapper) {
+        if (!isPortValid(wrapper.getPort())) {
+            //Come putFilenamePortPair: una porta non valida non viene registrata.
+            return RESULT_OK;
+        }
+
+        if (mappaAddressPortRowSwapServer.putIfAbsent(filename, wrapper) != null) {
+            return RESULT_FILENAME_IN_USE;
+        }
+
+        if (mappaFilenameByAddressPort.putIfAbsent(wrapper, filename) != null) {
+            //Porta già usata da un altro file: annullo l'inserimento del filename.
+            mappaAddressPortRowSwapServer.remove(filename, wrapper);
+            return RESULT_PAIR_IN_USE;
         }
+
+        return RESULT_OK;
+    }
+
+    //Cancella il row swap server se il filename è registrato proprio con quella coppia indirizzo/porta.
+    public int dismissRowSwapServer(String filename, InetAddressPortWrapper wrapper) {
+        InetAddressPortWrapper current = mappaAddressPortRowSwapServer.get(filename);
+
+        if (current == null) {
+            return RESULT_FILENAME_NOT_IN_USE;
+        }
+
+        if (!current.equals(wrapper)) {
+            return RESULT_PAIR_NOT_CONSISTENT;
+        }
+
+        if (mappaAddressPortRowSwapServer.remove(filename, current)) {
+            mappaFilenameByAddressPort.remove(current, filename);
+        }
+
+        return RESULT_OK;
     }
 
     public InetAddressPortWrapper getAddressPortByFilename(String filename) {
-        InetAddressPortWrapper wrapper;
+        return mappaAddressPortRowSwapServer.get(filename);
+    }
+
+    public boolean isFilenameInUse(String filename) {
+        return mappaAddressPortRowSwapServer.containsKey(filename);
+    }
+
+    public boolean isAddressPortInUse(InetAddressPortWrapper wrapper) {
+        return mappaFilenameByAddressPort.containsKey(wrapper);
+    }
+
+    //Risposta a una richiesta di un client: indirizzo e porta del row swap server che gestisce il file.
+    public String lookup(String filename) {
+        InetAddressPortWrapper wrapper = resolve(filename, false); //trovo porta corrisp. se esiste
+        if (wrapper == null) { //se il file non esiste lo comunico
+            return "Il file richiesto non esiste, quindi non c'è una porta corrispondente\n";
+        } else { //altrimenti restituisco la porta corrisp.
+            return wrapper.getAddress().getHostAddress() + ":" + wrapper.getPort();
+        }
+    }
 
-        synchronized (mappaAddressPortRowSwapServer) {
-            wrapper = mappaAddressPortRowSwapServer.getOrDefault(filename, null);
+    //Ricerca per conto di un client, tracciata con un evento JFR.
+    private InetAddressPortWrapper resolve(String filename, boolean binary) {
+        RowSwapEvents.Lookup event = null;
+        if (RowSwapEvents.LOOKUP_TYPE.isEnabled()) {
+            event = new RowSwapEvents.Lookup();
+            event.begin();
+        }
+
+        InetAddressPortWrapper wrapper = getAddressPortByFilename(filename);
+
+        if (event != null && event.shouldCommit()) {
+            event.filename = filename;
+            event.rowSwapServer = wrapper == null ? "" : wrapper.getAddress().getHostAddress() + ":" + wrapper.getPort();
+            event.binary = binary;
+            event.commit();
         }
 
         return wrapper;
     }
 
-    public boolean isFilenameInUse(String filename) {
-        boolean result;
-        synchronized (mappaAddressPortRowSwapServer) {
-            result = mappaAddressPortRowSwapServer.containsKey(filename);
+    //Risposta completa a un datagramma di un client: i client asincroni antepongono "#id#" al filename
+    //e si aspettano lo stesso prefisso nella risposta.
+    public String answerClient(String richiesta) {
+        int tagLength = Protocol.requestTagLength(richiesta);
+
+        if (tagLength == 0) {
+            return lookup(richiesta);
         }
-        return result;
+
+        return richiesta.substring(0, tagLength) + lookup(richiesta.substring(tagLength));
     }
 
-    public boolean isAddressPortInUse(InetAddressPortWrapper wrapper) {
-        boolean result;
-        synchronized (mappaAddressPortRowSwapServer) {
-            result = mappaAddressPortRowSwapServer.containsValue(wrapper);
+    //Esegue una richiesta di un row swap server (CMD:FILENAME:IP:PORT) e ritorna il codice di risposta.
+    public int handleRowSwapRequest(String request) {
+        StringTokenizer tokenizer = new StringTokenizer(request, ":");
+        int response;
+
+        try {
+            String cmd = tokenizer.nextToken();
+            String filename = tokenizer.nextToken();
+            String address = tokenizer.nextToken();
+            int port = Integer.parseInt(tokenizer.nextToken());
+            InetAddressPortWrapper wrapper = new InetAddressPortWrapper(address, port);
+
+            response = handleRowSwapRequest(cmd, filename, wrapper);
+        } catch (NoSuchElementException | NumberFormatException | UnknownHostException e) {
+            response = RESULT_MALFORMED_REQUEST;
+        }
+
+        return response;
+    }
+
+    //Le registrazioni e le cancellazioni si tracciano con l'evento JFR rowswap.Registration.
+    private int handleRowSwapRequest(String cmd, String filename, InetAddressPortWrapper wrapper) {
+        RowSwapEvents.Registration event = null;
+        if (RowSwapEvents.REGISTRATION_TYPE.isEnabled()) {
+            event = new RowSwapEvents.Registration();
+            event.begin();
+        }
+
+        int response;
+
+        //Parsing
+        if (cmd.equalsIgnoreCase(CMD_REGISTER)) {
+            //Verifico la disponibilità di filename e porta e registro il row swap server.
+            response = registerRowSwapServer(filename, wrapper);
+        } else if (cmd.equalsIgnoreCase(CMD_DISMISS)) {
+            //Verifico che filename e porta coincidino e cancello il row swap server.
+            response = dismissRowSwapServer(filename, wrapper);
+        } else {
+            response = RESULT_UNKNOWN_COMMAND;
+        }
+
+        if (event != null && event.shouldCommit()) {
+            event.command = cmd;
+            event.filename = filename;
+            event.rowSwapServer = wrapper.getAddress().getHostAddress() + ":" + wrapper.getPort();
+            event.result = RowSwapServer.getResultString(response);
+            event.commit();
+        }
+
+        return response;
+    }
+
+    //Richiesta in formato binario (vedi Protocol): la porta client accetta solo LOOKUP, quella dei row swap
+    //server solo REGISTER e DISMISS (lo status della risposta è il codice RESULT_*). La risposta viene scritta
+    //in reply a partire dalla posizione corrente, con lo stesso opcode e requestId della richiesta.
+    public void handleBinaryRequest(ByteBuffer request, ByteBuffer reply, boolean rowSwapPort) {
+        byte opcode = Protocol.getOpcode(request);
+        int requestId = Protocol.getRequestId(request);
+        int start = reply.position();
+
+        request.position(Protocol.getHeaderSize(request));
+
+        try {
+            if (opcode == Protocol.OP_PING) {
+                Protocol.putHeader(reply, opcode, Protocol.STATUS_OK, requestId);
+            } else if (opcode == Protocol.OP_LOOKUP && !rowSwapPort) {
+                InetAddressPortWrapper wrapper = resolve(Protocol.getString(request), true);
+
+                if (wrapper == null) {
+                    Protocol.putHeader(reply, opcode, Protocol.STATUS_NOT_FOUND, requestId);
+                } else {
+                    Protocol.putHeader(reply, opcode, Protocol.STATUS_OK, requestId);
+                    Protocol.putAddress(reply, wrapper.getAddress(), wrapper.getPort());
+                }
+            } else if ((opcode == Protocol.OP_REGISTER || opcode == Protocol.OP_DISMISS) && rowSwapPort) {
+                String filename = Protocol.getString(request);
+                InetSocketAddress address = Protocol.getAddress(request);
+                int response = handleRowSwapRequest(opcode == Protocol.OP_REGISTER ? CMD_REGISTER : CMD_DISMISS,
+                        filename, new InetAddressPortWrapper(address.getAddress(), address.getPort()));
+
+                Protocol.putHeader(reply, opcode, (byte) response, requestId);
+            } else {
+                Protocol.putHeader(reply, opcode, Protocol.STATUS_UNKNOWN_OP, requestId);
+            }
+        } catch (ProtocolException e) {
+            reply.position(start);
+            Protocol.putHeader(reply, opcode, Protocol.STATUS_MALFORMED, requestId);
         }
-        return result;
     }
 
     public int getClientPort() {
-        return clientHandler.getPort();
+        if (reactors != null) {
+            return reactors[0].getClientPort();
+        }
+
+        return clientHandlers[0].getPort();
     }
 
     public int getRowSwapPort() {
+        if (reactors != null) {
+            return reactors[0].getRowSwapPort();
+        }
+
         return rowSwapHandler.getPort();
     }
 
     public static void main(String[] args) {
 
-        //DiscoveryServer portaRichiesteClient portaRegistrazioneRS
+        //DiscoveryServer portaRichiesteClient portaRegistrazioneRS [-nio] [-reuseport=N]
 
-        //controllo che l'utente abbia inserito portaDS e almeno un file e una porta
-        if (args.length != 2) {
-            System.out.println("Usage: DiscoveryServer portaRichiesteClient portaRegistrazioneRS");
+        //controllo che l'utente abbia inserito le due porte
+        if (args.length < 2) {
+            System.out.println("Usage: DiscoveryServer portaRichiesteClient portaRegistrazioneRS [-nio] [-reuseport=N]");
             System.exit(INV_ERR);
         }
 
+        boolean nio = false;
+        int clientThreads = 1;
+
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-nio")) {
+                nio = true;
+            } else if (args[i].startsWith("-reuseport=")) {
+                try {
+                    clientThreads = Integer.parseInt(args[i].substring("-reuseport=".length()));
+                } catch (NumberFormatException e) {
+                    clientThreads = -1;
+                }
+                if (clientThreads < 1) {
+                    System.out.println("Invalid -reuseport: must be int >= 1");
+                    System.exit(INV_ERR);
+                }
+            } else {
+                System.out.println("Usage: DiscoveryServer portaRichiesteClient portaRegistrazioneRS [-nio] [-reuseport=N]");
+                System.exit(INV_ERR);
+            }
+        }
+
+        if (clientThreads > 1 && !isReusePortSupported()) {
+            System.out.println("SO_REUSEPORT non supportato: uso un solo socket per la porta client");
+            clientThreads = 1;
+        }
+
         //controllo porta DiscoveryServer
         int clientPort = -1;
 
@@ -410,9 +933,9 @@ public class DiscoveryServer {
         DiscoveryServer server = null;
 
         try {
-            server = new DiscoveryServer(clientPort, rowSwapPort);
+            server = new DiscoveryServer(clientPort, rowSwapPort, nio, clientThreads);
             server.start();
-        } catch (SocketException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             System.exit(SOCKET_ERR);
         }
@@ -420,6 +943,7 @@ public class DiscoveryServer {
         System.out.println("Server avviato.");
         System.out.println("Porta richieste clienti: " + server.getClientPort());
         System.out.println("Porta richieste row swap: " + server.getRowSwapPort());
+        System.out.println("Thread porta clienti: " + clientThreads + (nio ? " (NIO)" : ""));
         System.out.println("Attendo terminazione dei figli...");
 
         try {
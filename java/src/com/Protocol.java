@@ -0,0 +1,276 @@
+package com;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//Formato binario dei datagrammi, condiviso da RSClient, RowSwapServer e DiscoveryServer.
+//
+//Header fisso (HEADER_SIZE byte):
+//  magic (1) | versione (1) | opcode (1) | status (1) | requestId (int, 4)
+//Corpo, secondo l'opcode:
+//  PING          richiesta e risposta vuote (usato dai client per negoziare il formato)
+//  LOOKUP        richiesta: nome           risposta OK: indirizzo, porta; altrimenti NOT_FOUND
+//  REGISTER      richiesta: nome, indirizzo, porta     risposta: status = codice RESULT_* del DS
+//  DISMISS       come REGISTER
+//  SWAP          richiesta: riga1, riga2 (varint)      risposta: OK, OUT_OF_RANGE (+ numero righe),
+//                                                      SERVER_ERROR (+ messaggio)
+//  SWAP_BATCH    richiesta: n, n coppie di varint      risposta: n, un byte di status per coppia
+//  STATS         richiesta vuota                       risposta: testo delle metriche del row swap server
+//
+//Versione 2 (solo richieste al row swap server): l'header fisso è seguito dal clientId (long) e il requestId
+//fa da numero di sequenza del client. Il server ricorda per un po' la risposta data a ogni (clientId, requestId)
+//e a una ritrasmissione rimanda quella invece di rieseguire lo swap. Le risposte hanno sempre la versione 1.
+//
+//I nomi e i messaggi sono UTF-8 preceduti dalla lunghezza (varint), gli indirizzi sono i byte grezzi
+//(4 o 16) preceduti dalla lunghezza e la porta è su 2 byte.
+//
+//I server distinguono i due formati dal primo byte: writeUTF inizia con la lunghezza della stringa, che per
+//le richieste di testo non produce mai MAGIC seguito da VERSION con la lunghezza giusta (vedi isBinary).
+public final class Protocol {
+
+    public static final byte MAGIC = (byte) 0xB5;
+    public static final byte VERSION = 1;
+    public static final byte VERSION_CLIENT_ID = 2;
+    public static final int HEADER_SIZE = 8;
+    public static final int CLIENT_HEADER_SIZE = HEADER_SIZE + Long.BYTES;
+
+    public static final byte OP_PING = 0;
+    public static final byte OP_LOOKUP = 1;
+    public static final byte OP_REGISTER = 2;
+    public static final byte OP_DISMISS = 3;
+    public static final byte OP_SWAP = 4;
+    public static final byte OP_SWAP_BATCH = 5;
+    public static final byte OP_STATS = 6;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_OUT_OF_RANGE = 1;
+    public static final byte STATUS_MALFORMED = 2;
+    public static final byte STATUS_SERVER_ERROR = 3;
+    public static final byte STATUS_NOT_FOUND = 4;
+    public static final byte STATUS_UNKNOWN_OP = 5;
+
+    //Dimensione massima di un varint (int senza segno su 7 bit per byte).
+    public static final int MAX_VARINT_SIZE = 5;
+
+    private Protocol() {
+    }
+
+    //Un datagramma è binario se inizia con MAGIC e una versione nota, ha l'header completo
+    //e non è una stringa writeUTF della lunghezza giusta.
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE || data[offset] != MAGIC || length < headerSize(data[offset + 1])) {
+            return false;
+        }
+
+        int utfLength = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+
+        return length != utfLength + 2;
+    }
+
+    public static boolean isBinary(ByteBuffer frame) {
+        int start = frame.position();
+        int length = frame.remaining();
+
+        if (length < HEADER_SIZE || frame.get(start) != MAGIC || length < headerSize(frame.get(start + 1))) {
+            return false;
+        }
+
+        int utfLength = ((frame.get(start) & 0xFF) << 8) | (frame.get(start + 1) & 0xFF);
+
+        return length != utfLength + 2;
+    }
+
+    //Dimensione dell'header della versione indicata, Integer.MAX_VALUE se la versione non è nota.
+    private static int headerSize(byte version) {
+        return version == VERSION ? HEADER_SIZE : version == VERSION_CLIENT_ID ? CLIENT_HEADER_SIZE : Integer.MAX_VALUE;
+    }
+
+    public static void putHeader(ByteBuffer frame, byte opcode, byte status, int requestId) {
+        frame.put(MAGIC).put(VERSION).put(opcode).put(status).putInt(requestId);
+    }
+
+    //Con clientId >= 0 header di versione 2 (richiesta idempotente), altrimenti di versione 1.
+    public static void putHeader(ByteBuffer frame, byte opcode, byte status, int requestId, long clientId) {
+        if (clientId < 0) {
+            putHeader(frame, opcode, status, requestId);
+            return;
+        }
+
+        frame.put(MAGIC).put(VERSION_CLIENT_ID).put(opcode).put(status).putInt(requestId).putLong(clientId);
+    }
+
+    //Dimensione dell'header per il clientId indicato (negativo: nessuno).
+    public static int headerSize(long clientId) {
+        return clientId < 0 ? HEADER_SIZE : CLIENT_HEADER_SIZE;
+    }
+
+    //Gli accessori all'header leggono in posizione assoluta: il frame inizia all'indice 0 del buffer.
+    public static byte getVersion(ByteBuffer frame) {
+        return frame.get(1);
+    }
+
+    public static byte getOpcode(ByteBuffer frame) {
+        return frame.get(2);
+    }
+
+    public static byte getStatus(ByteBuffer frame) {
+        return frame.get(3);
+    }
+
+    public static int getRequestId(ByteBuffer frame) {
+        return frame.getInt(4);
+    }
+
+    //clientId di un frame di versione 2, -1 per la versione 1.
+    public static long getClientId(ByteBuffer frame) {
+        return getVersion(frame) == VERSION_CLIENT_ID ? frame.getLong(HEADER_SIZE) : -1;
+    }
+
+    //Dimensione dell'header del frame: il corpo inizia da qui.
+    public static int getHeaderSize(ByteBuffer frame) {
+        return headerSize(getVersion(frame));
+    }
+
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarInt(ByteBuffer frame, int value) {
+        while ((value & ~0x7F) != 0) {
+            frame.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        frame.put((byte) value);
+    }
+
+    //Un valore oltre Integer.MAX_VALUE torna negativo: chi legge righe lo tratta come fuori dal file.
+    public static int getVarInt(ByteBuffer frame) throws ProtocolException {
+        int value = 0;
+
+        try {
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = frame.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Varint troncato");
+        }
+
+        throw new ProtocolException("Varint troppo lungo");
+    }
+
+    public static void putBytes(ByteBuffer frame, byte[] bytes) {
+        putVarInt(frame, bytes.length);
+        frame.put(bytes);
+    }
+
+    public static byte[] getBytes(ByteBuffer frame) throws ProtocolException {
+        int length = getVarInt(frame);
+
+        if (length < 0 || length > frame.remaining()) {
+            throw new ProtocolException("Campo troncato");
+        }
+
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    public static void putString(ByteBuffer frame, String string) {
+        putBytes(frame, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String getString(ByteBuffer frame) throws ProtocolException {
+        return new String(getBytes(frame), StandardCharsets.UTF_8);
+    }
+
+    public static void putAddress(ByteBuffer frame, InetAddress address, int port) {
+        putBytes(frame, address.getAddress());
+        frame.putShort((short) port);
+    }
+
+    public static InetSocketAddress getAddress(ByteBuffer frame) throws ProtocolException {
+        byte[] raw = getBytes(frame);
+
+        if (frame.remaining() < 2) {
+            throw new ProtocolException("Porta mancante");
+        }
+
+        int port = frame.getShort() & 0xFFFF;
+
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(raw), port);
+        } catch (UnknownHostException e) {
+            throw new ProtocolException("Indirizzo non valido");
+        }
+    }
+
+    //Byte occupati da un indirizzo con putAddress.
+    public static int addressSize(InetAddress address) {
+        int length = address.getAddress().length;
+        return varIntSize(length) + length + 2;
+    }
+
+    //Formato di testo: lunghezza del prefisso "#id#" o "#clientId:id#" (decimali) con cui i client correlano
+    //le risposte e, con il clientId, il row swap server riconosce le ritrasmissioni. 0 se assente.
+    public static int requestTagLength(String richiesta) {
+        if (richiesta.length() < 3 || richiesta.charAt(0) != '#') {
+            return 0;
+        }
+
+        int i = skipDigits(richiesta, 1);
+
+        if (i > 1 && i < richiesta.length() && richiesta.charAt(i) == ':') {
+            int j = skipDigits(richiesta, i + 1);
+            i = j > i + 1 ? j : 1;
+        }
+
+        return i > 1 && i < richiesta.length() && richiesta.charAt(i) == '#' ? i + 1 : 0;
+    }
+
+    private static int skipDigits(String string, int from) {
+        while (from < string.length() && Character.isDigit(string.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    //id di un prefisso valido (vedi requestTagLength), -1 se non sta in un int.
+    public static int getTagRequestId(String tag) {
+        int colon = tag.indexOf(':');
+
+        try {
+            return Integer.parseInt(tag.substring(colon < 0 ? 1 : colon + 1, tag.length() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //clientId di un prefisso valido "#clientId:id#", -1 se manca o non sta in un long.
+    public static long getTagClientId(String tag) {
+        int colon = tag.indexOf(':');
+
+        if (colon < 0) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(tag.substring(1, colon));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -2,14 +2,32 @@ package com;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RSClient {
 
     private static final String DEFAULT_serverIP = "127.0.0.1";
     private static final int DEFAULT_serverPort = 6666;
     private static final int DEFAULT_bufferSize = 256;
+    //Dimensione massima del payload di un datagramma UDP (swap multipli).
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    //Spazio massimo per le coppie di un singolo datagramma (writeUTF aggiunge 2 byte di lunghezza).
+    private static final int MAX_BATCH_REQUEST = MAX_DATAGRAM_SIZE - 2;
+    //Lunghezza massima del prefisso "#clientId:id#" (long e int decimali).
+    private static final int MAX_TAG_LENGTH = 32;
     
     private static final int PARAM_ERR = 1;
     private static final int HOST_ERR = 2;
@@ -17,22 +35,168 @@ public class RSClient {
     private static final int SERVICE_ERR = 4;
     private static final int EOF_OCC = 5;
 
+    //Formato dei datagrammi (vedi Protocol). Con PROTOCOL_AUTO il client manda un PING binario al primo
+    //contatto con ogni server e, se la risposta non è binaria, continua col formato di testo.
+    public static final int PROTOCOL_AUTO = 0;
+    public static final int PROTOCOL_TEXT = 1;
+    public static final int PROTOCOL_BINARY = 2;
+
+    //Le risposte binarie vengono tradotte negli stessi messaggi del formato di testo.
+    private static final String FILE_NOT_FOUND = "Il file richiesto non esiste, quindi non c'è una porta corrispondente\n";
+
+    //Cache di risoluzione condivisa da tutti i client del processo.
+    private static final long DEFAULT_CACHE_TTL_MILLIS = 30000;
+    private static final long DEFAULT_CACHE_NEGATIVE_TTL_MILLIS = 2000;
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+    //Richieste asincrone: quante possono essere in volo insieme e dopo quanto si considerano perse.
+    private static final int DEFAULT_MAX_OUTSTANDING = 64;
+    private static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 5000;
+    //Timeout delle risposte sincrone: senza, un server sparito (o una risoluzione vecchia in cache) blocca il client.
+    private static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+    //Attesa massima della risposta al PING di negoziazione, poi si ripiega sul testo.
+    private static final int NEGOTIATE_TIMEOUT_MILLIS = 1000;
+
     private static boolean isPortValid(int port) {
         return 0x400 < port && port <= 0xFFFF;
     }
 
+    //Cache filename -> risposta del discovery server (addressRS:portRS oppure messaggio di errore).
+    //Le risposte positive durano ttl, quelle negative (file non registrato) negativeTtl; oltre maxEntries
+    //viene scartata la voce usata meno di recente.
+    private static class DiscoveryCache {
+
+        private static class CachedReply {
+            private final String reply;
+            private final long expiresAt;
+
+            private CachedReply(String reply, long expiresAt) {
+                this.reply = reply;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        private long ttlNanos;
+        private long negativeTtlNanos;
+        private int maxEntries;
+
+        private final LinkedHashMap<String, CachedReply> entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedReply> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        private DiscoveryCache(long ttlMillis, long negativeTtlMillis, int maxEntries) {
+            configure(ttlMillis, negativeTtlMillis, maxEntries);
+        }
+
+        private synchronized void configure(long ttlMillis, long negativeTtlMillis, int maxEntries) {
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+            this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+            this.maxEntries = maxEntries;
+
+            //Riduco subito la cache se il nuovo limite è più piccolo.
+            while (entries.size() > maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+
+        private synchronized String get(String key) {
+            CachedReply entry = entries.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (System.nanoTime() - entry.expiresAt >= 0) {
+                entries.remove(key);
+                return null;
+            }
+
+            return entry.reply;
+        }
+
+        private synchronized void put(String key, String reply, boolean positive) {
+            long ttl = positive ? ttlNanos : negativeTtlNanos;
+
+            if (ttl <= 0 || maxEntries <= 0) {
+                return;
+            }
+
+            entries.put(key, new CachedReply(reply, System.nanoTime() + ttl));
+        }
+
+        private synchronized void remove(String key) {
+            entries.remove(key);
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+        }
+    }
+
+    private static final DiscoveryCache discoveryCache =
+            new DiscoveryCache(DEFAULT_CACHE_TTL_MILLIS, DEFAULT_CACHE_NEGATIVE_TTL_MILLIS, DEFAULT_CACHE_SIZE);
+
+    /**
+     * Configura la cache di risoluzione condivisa da tutti i client del processo.
+     *
+     * @param ttlMillis         durata delle risoluzioni riuscite (0 le disabilita)
+     * @param negativeTtlMillis durata delle risposte "file non esistente" (0 le disabilita)
+     * @param maxEntries        numero massimo di voci (0 disabilita la cache)
+     */
+    public static void configureDiscoveryCache(long ttlMillis, long negativeTtlMillis, int maxEntries) {
+        if (ttlMillis < 0 || negativeTtlMillis < 0 || maxEntries < 0) {
+            throw new IllegalArgumentException("Parametri della cache non validi");
+        }
+
+        discoveryCache.configure(ttlMillis, negativeTtlMillis, maxEntries);
+    }
+
+    /**
+     * Svuota la cache di risoluzione.
+     */
+    public static void clearDiscoveryCache() {
+        discoveryCache.clear();
+    }
+
     private final InetAddress addressDS;
     private final int portDS;
 
-    private InetAddress addressRS = null;
-    private int portRS = -1;
+    //volatile: con l'API asincrona vengono impostati dal thread ricevitore.
+    private volatile InetAddress addressRS = null;
+    private volatile int portRS = -1;
+    //Chiave in cache del servizio corrente, per invalidarla se il row swap server non risponde.
+    private volatile String serviceKey = null;
 
     private boolean networkState = false;
 
+    //Formato scelto dall'utente e formato negoziato con ciascun server (PROTOCOL_AUTO = non ancora noto).
+    private int protocol = PROTOCOL_AUTO;
+    private volatile int formatDS = PROTOCOL_AUTO;
+    private volatile int formatRS = PROTOCOL_AUTO;
+
     private DatagramSocket socket;
     private DatagramPacket packet;
 
     private byte[] emptyBuffer = new byte[DEFAULT_bufferSize];
+    private byte[] batchBuffer = null;
+    private byte[] batchRequestBuffer = null;
+
+    //API asincrona: socket separata, thread che riceve le risposte e le abbina alle richieste tramite id.
+    private int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+    private long asyncTimeoutMillis = DEFAULT_ASYNC_TIMEOUT_MILLIS;
+    private DatagramSocket asyncSocket = null;
+    private Thread asyncReceiver = null;
+    private Semaphore outstanding = null;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+    //Ritrasmissioni delle richieste al row swap server senza risposta. Con retries > 0 gli swap sono idempotenti:
+    //portano clientId e requestId (vedi Protocol), così il server non riesegue quelli già ricevuti.
+    //Le richieste sincrone portano sempre il requestId, che abbina le risposte anche dopo un timeout.
+    private volatile int retries = 0;
+    private final long clientId = UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
 
     public RSClient() throws UnknownHostException {
         this(DEFAULT_serverIP, DEFAULT_serverPort);
@@ -76,12 +240,61 @@ public class RSClient {
      */
     public void initNetwork() throws SocketException {
         socket = new DatagramSocket();
-        //Se voglio imposto il timeout:
-        //socket.setSoTimeout(DEFAULT_timeout);
+        socket.setSoTimeout(DEFAULT_TIMEOUT_MILLIS);
         packet = new DatagramPacket(emptyBuffer, 0, emptyBuffer.length, addressDS, portDS);
         networkState = true;
     }
 
+    /**
+     * Imposta il timeout delle risposte; un row swap server che non risponde in tempo viene
+     * rimosso dalla cache di risoluzione.
+     *
+     * @param millis timeout in millisecondi (default 5000, 0 = infinito)
+     * @throws SocketException Non è stato possibile impostare il timeout
+     */
+    public void setTimeout(int millis) throws SocketException {
+        //Devo verificare che la rete sia inizializzata.
+        if (!networkState) throw new IllegalStateException("Bisogna inizializzare la rete prima");
+
+        socket.setSoTimeout(millis);
+    }
+
+    /**
+     * Imposta quante volte una richiesta al row swap server senza risposta viene ritrasmessa.
+     * Con retries > 0 gli swap portano l'identificativo del client e un numero di sequenza: il server
+     * riconosce le ritrasmissioni e rimanda la risposta già data invece di rieseguire lo swap.
+     * Le chiamate sincrone ritrasmettono allo scadere del timeout (vedi setTimeout),
+     * quelle asincrone distribuiscono le ritrasmissioni nel timeout asincrono.
+     *
+     * @param retries numero di ritrasmissioni (0 = nessuna, richieste non idempotenti)
+     */
+    public void setRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("Numero di ritrasmissioni non valido");
+        }
+
+        this.retries = retries;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getClientId() {
+        return clientId;
+    }
+
+    //clientId da mettere nelle richieste di swap, -1 se non sono idempotenti.
+    private long swapClientId() {
+        return retries > 0 ? clientId : -1;
+    }
+
+    //Prefisso di testo delle richieste di swap: "#clientId:id#" se idempotenti, altrimenti "#id#". Anche senza
+    //ritrasmissioni l'id serve: una risposta arrivata dopo il timeout non va presa per quella della richiesta dopo.
+    private String swapTag(int id) {
+        return retries > 0 ? "#" + clientId + ":" + id + "#" : "#" + id + "#";
+    }
+
     /**
      * Richede al discovery server il servizio collegato al file.
      *
@@ -97,57 +310,185 @@ public class RSClient {
         //Devo verificare che la rete sia inizializzata.
         if (!networkState) throw new IllegalStateException("Bisogna inizializzare la rete prima");
 
-        //Imposto il pacchetto volto al Discovery.
-        packet.setAddress(addressDS);
-        packet.setPort(portDS);
+        RowSwapEvents.ClientLookup event = null;
+        if (RowSwapEvents.CLIENT_LOOKUP_TYPE.isEnabled()) {
+            event = new RowSwapEvents.ClientLookup();
+            event.begin();
+        }
 
-        //Imposto la richiesta.
-        try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream()) {
-            try (DataOutputStream dataStream = new DataOutputStream(byteStream)) {
-                //Creo il messaggio per il discovery e lo salvo nel pacchetto.
-                dataStream.writeUTF(filename);
-                packet.setData(byteStream.toByteArray());
+        //Se il file è già stato risolto di recente evito il giro dal discovery.
+        String key = addressDS.getHostAddress() + ":" + portDS + "/" + filename;
+        String cached = discoveryCache.get(key);
+
+        if (cached != null) {
+            String esito = applyServiceReply(key, cached);
+            commitLookup(event, filename, true, cached);
+            return esito;
+        }
+
+        //Imposto la richiesta: frame binario o stringa "#id#filename", secondo il formato del discovery.
+        int id = nextRequestId();
+
+        if (getFormatDS() == PROTOCOL_BINARY) {
+            packet.setData(lookupFrame(id, filename));
+        } else {
+            try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream()) {
+                try (DataOutputStream dataStream = new DataOutputStream(byteStream)) {
+                    //Creo il messaggio per il discovery e lo salvo nel pacchetto.
+                    dataStream.writeUTF("#" + id + "#" + filename);
+                    packet.setData(byteStream.toByteArray());
+                }
             }
         }
 
+        //Imposto il pacchetto volto al Discovery.
+        packet.setAddress(addressDS);
+        packet.setPort(portDS);
+
         //Invio la richiesta.
         socket.send(packet);
 
-        //Attendo risposta.
-        packet.setData(emptyBuffer);
-        socket.receive(packet);
+        //Attendo risposta, scartando quelle arrivate tardi: binarie a un PING (se il formato è testo)
+        //o a una ricerca precedente andata in timeout.
+        do {
+            packet.setData(emptyBuffer);
+            socket.receive(packet);
+        } while (formatDS == PROTOCOL_TEXT && Protocol.isBinary(packet.getData(), 0, packet.getLength())
+                || isStaleReply(packet, id));
 
-        //Decodifico la risposta:
-        try (ByteArrayInputStream byteStream = new ByteArrayInputStream(packet.getData())) {
-            try (DataInputStream dataStream = new DataInputStream(byteStream)) {
-                //Ricavo la porta del servizio.
-                String tmpString = dataStream.readUTF();
-                StringTokenizer tokenizer = new StringTokenizer(tmpString, ":");
+        //Decodifico la risposta (addressRS:portRS oppure messaggio di errore), senza il prefisso:
+        String tmpString = decodeReply(packet);
+        tmpString = tmpString.substring(Protocol.requestTagLength(tmpString));
+        String esito = applyServiceReply(key, tmpString);
 
-                try{
-                    this.addressRS = InetAddress.getByName(tokenizer.nextToken());
-                    this.portRS = Integer.parseInt(tokenizer.nextToken());
-                }catch (UnknownHostException | NoSuchElementException | NumberFormatException e){
-                    return tmpString;
-                }
+        discoveryCache.put(key, tmpString, esito == null);
+        commitLookup(event, filename, false, tmpString);
+
+        return esito;
+    }
+
+    private static void commitLookup(RowSwapEvents.ClientLookup event, String filename, boolean cached, String reply) {
+        if (event != null && event.shouldCommit()) {
+            event.filename = filename;
+            event.cached = cached;
+            event.result = reply.trim();
+            event.commit();
+        }
+    }
+
+    //Evento JFR di uno swap, null se è disabilitato: così gli swap senza registrazione non allocano.
+    private static RowSwapEvents.ClientSwap beginSwapEvent() {
+        if (!RowSwapEvents.CLIENT_SWAP_TYPE.isEnabled()) {
+            return null;
+        }
+
+        RowSwapEvents.ClientSwap event = new RowSwapEvents.ClientSwap();
+        event.begin();
+        return event;
+    }
+
+    private static void commitSwap(RowSwapEvents.ClientSwap event, int line1, int line2, boolean async, int sent, int received, String esito) {
+        if (event != null && event.shouldCommit()) {
+            event.line1 = line1;
+            event.line2 = line2;
+            event.async = async;
+            event.bytesSent = sent;
+            event.bytesReceived = received;
+            event.result = esito;
+            event.commit();
+        }
+    }
+
+    //Decodifica la risposta del discovery (addressRS:portRS) e imposta il servizio corrente.
+    private String applyServiceReply(String key, String reply) {
+        StringTokenizer tokenizer = new StringTokenizer(reply, ":");
+        InetAddress address;
+        int port;
+
+        try{
+            address = InetAddress.getByName(tokenizer.nextToken());
+            port = Integer.parseInt(tokenizer.nextToken());
+        }catch (UnknownHostException | NoSuchElementException | NumberFormatException e){
+            return reply;
+        }
+
+        //Nuovo row swap server: il formato va rinegoziato.
+        if (!address.equals(this.addressRS) || port != this.portRS) {
+            this.formatRS = protocol;
+        }
+
+        this.addressRS = address;
+        this.portRS = port;
+
+        this.serviceKey = key;
 
-                //Verifico che la porta sia valida.
-                //Controllo che la porta sia non standard e nel range di 16-bit.
-                //Se il nome file non fosse fra quelli noti al DiscoveryServer, il
-                //DiscoveryServer invia esito negativo e il client termina.
+        //Verifico che la porta sia valida.
+        //Controllo che la porta sia non standard e nel range di 16-bit.
+        //Se il nome file non fosse fra quelli noti al DiscoveryServer, il
+        //DiscoveryServer invia esito negativo e il client termina.
 
-                //Controllo non necessario.
-//                if (!(isPortValid(tmpPort)))
-//                    return "Porta non valida";
+        //Controllo non necessario.
+//        if (!(isPortValid(tmpPort)))
+//            return "Porta non valida";
 //
-//                this.portRS = tmpPort;
+//        this.portRS = tmpPort;
 
 
-                return null;
+        return null;
+    }
+
+    //Invia la richiesta al row swap server corrente e attende la risposta nel buffer indicato, scartando
+    //le risposte ritardatarie di richieste precedenti (le richieste sincrone portano tutte il requestId).
+    //Allo scadere del timeout ritrasmette la richiesta fino a retries volte; se il server non risponde
+    //(timeout o porta irraggiungibile) la sua risoluzione viene tolta dalla cache.
+    private void exchangeWithRS(byte[] replyBuffer, int requestId) throws IOException {
+        packet.setAddress(addressRS);
+        packet.setPort(portRS);
+
+        //Il pacchetto riceve anche la risposta: tengo la richiesta per le ritrasmissioni.
+        byte[] request = packet.getData();
+        int offset = packet.getOffset();
+        int length = packet.getLength();
+        boolean text = !Protocol.isBinary(request, offset, length);
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                packet.setData(request, offset, length);
+                socket.send(packet);
+
+                do {
+                    packet.setData(replyBuffer);
+                    socket.receive(packet);
+                } while (text && Protocol.isBinary(packet.getData(), 0, packet.getLength())
+                        || isStaleReply(packet, requestId));
+
+                return;
+            } catch (SocketTimeoutException | PortUnreachableException e) {
+                if (e instanceof SocketTimeoutException && attempt < retries) {
+                    continue;
+                }
+
+                if (serviceKey != null) {
+                    discoveryCache.remove(serviceKey);
+                }
+                throw e;
             }
         }
     }
 
+    //Risposta a un'altra richiesta (arrivata dopo il suo timeout). Le risposte di testo portano l'id
+    //nel prefisso; quelle senza prefisso (es. errori di ricezione del server) valgono sempre.
+    private static boolean isStaleReply(DatagramPacket reply, int requestId) throws IOException {
+        if (Protocol.isBinary(reply.getData(), 0, reply.getLength())) {
+            return Protocol.getRequestId(ByteBuffer.wrap(reply.getData())) != requestId;
+        }
+
+        String risposta = decodeReply(reply);
+        int tagLength = Protocol.requestTagLength(risposta);
+
+        return tagLength > 0 && Protocol.getTagRequestId(risposta.substring(0, tagLength)) != requestId;
+    }
+
 
     /**
      * Chiede al server di swappare due righe.
@@ -175,36 +516,650 @@ public class RSClient {
         if (!isPortValid(portRS)) throw new IllegalStateException("Bisogna cercare il servizio prima");
 
         //Ora posso chidere al servizio di swappare le righe:
+        RowSwapEvents.ClientSwap event = beginSwapEvent();
+
+        //Formato binario: frame con le due righe, la risposta ha lo stesso requestId.
+        if (getFormatRS() == PROTOCOL_BINARY) {
+            int id = nextRequestId();
+            byte[] frame = swapFrame(id, swapClientId(), line1, line2);
+            packet.setData(frame);
+            exchangeWithRS(emptyBuffer, id);
+            String esito = decodeReply(packet);
+            commitSwap(event, line1, line2, false, frame.length, packet.getLength(), esito);
+            return esito;
+        }
+
+        //"#id#r1,r2"; con le ritrasmissioni la richiesta è idempotente: "#clientId:id#r1,r2".
+        int id = nextRequestId();
 
         //Imposto la richiesta.
         try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream()) {
             try (DataOutputStream dataStream = new DataOutputStream(byteStream)) {
                 //Creo il messaggio per il discovery e lo salvo nel pacchetto.
-                dataStream.writeUTF(line1 + "," + line2);
+                dataStream.writeUTF(swapTag(id) + line1 + "," + line2);
                 packet.setData(byteStream.toByteArray());
             }
         }
 
-        //Invio la richiesta
-        packet.setAddress(addressRS);
-        packet.setPort(portRS);
-        socket.send(packet);
-
-        //Attendo risposta.
-        packet.setData(emptyBuffer);
-        socket.receive(packet);
+        //Invio la richiesta e attendo risposta.
+        int sent = packet.getLength();
+        exchangeWithRS(emptyBuffer, id);
 
         //Decodifico la risposta:
         try (ByteArrayInputStream byteStream = new ByteArrayInputStream(packet.getData())) {
             try (DataInputStream dataStream = new DataInputStream(byteStream)) {
-                //Ricavo il risultato e lo mostro.
+                //Ricavo il risultato (senza l'eventuale prefisso) e lo mostro.
                 String result = dataStream.readUTF();
+                result = result.substring(Protocol.requestTagLength(result));
+                commitSwap(event, line1, line2, false, sent, packet.getLength(), result);
                 return result;
             }
         }
 
     }
 
+    /**
+     * Chiede al server di swappare più coppie di righe: le coppie vengono applicate in ordine
+     * e il server riscrive il file una volta sola per ogni datagramma.
+     *
+     * @param lines1 prime linee delle coppie da swappare
+     * @param lines2 seconde linee delle coppie da swappare
+     * @return Esito di ciascuna coppia, nello stesso ordine.
+     * @throws IOException Errore dovuto alla socket, stream
+     */
+    public String[] swapLinesBatch(int[] lines1, int[] lines2) throws IOException {
+        //Controllo che le coppie siano complete
+        if (lines1.length != lines2.length) {
+            throw new IllegalArgumentException("Coppie di linee incomplete");
+        }
+
+        //Devo verificare che la rete sia inizializzata.
+        if (!networkState) throw new IllegalStateException("Bisogna inizializzare la rete prima");
+
+        //Devo verificare che sia già stato trovato il servizio.
+        if (!isPortValid(portRS)) throw new IllegalStateException("Bisogna cercare il servizio prima");
+
+        if (batchBuffer == null) {
+            batchBuffer = new byte[MAX_DATAGRAM_SIZE];
+        }
+
+        String[] esiti = new String[lines1.length];
+
+        if (getFormatRS() == PROTOCOL_BINARY) {
+            //Riempio ogni frame finché le coppie (varint) ci stanno nel datagramma.
+            int header = Protocol.headerSize(swapClientId()) + Protocol.MAX_VARINT_SIZE;
+            int first = 0;
+            int size = header;
+
+            for (int i = 0; i < lines1.length; i++) {
+                int pairSize = Protocol.varIntSize(lines1[i]) + Protocol.varIntSize(lines2[i]);
+
+                if (size + pairSize > MAX_DATAGRAM_SIZE) {
+                    sendBatchBinary(lines1, lines2, esiti, first, i);
+                    first = i;
+                    size = header;
+                }
+
+                size += pairSize;
+            }
+
+            if (first < lines1.length) {
+                sendBatchBinary(lines1, lines2, esiti, first, lines1.length);
+            }
+
+            return esiti;
+        }
+
+        StringBuilder richiesta = new StringBuilder();
+        int first = 0;
+        int limit = MAX_BATCH_REQUEST - MAX_TAG_LENGTH;
+
+        for (int i = 0; i < lines1.length; i++) {
+            String coppia = lines1[i] + "," + lines2[i] + ";";
+
+            //Se la coppia non ci sta nel datagramma corrente invio quello che ho già.
+            if (richiesta.length() + coppia.length() > limit) {
+                sendBatch(richiesta.toString(), esiti, first, i);
+                richiesta.setLength(0);
+                first = i;
+            }
+
+            richiesta.append(coppia);
+        }
+
+        if (richiesta.length() > 0) {
+            sendBatch(richiesta.toString(), esiti, first, lines1.length);
+        }
+
+        return esiti;
+    }
+
+    //Invia le coppie [from, to) in un frame SWAP_BATCH e decodifica i loro esiti.
+    private void sendBatchBinary(int[] lines1, int[] lines2, String[] esiti, int from, int to) throws IOException {
+        if (batchRequestBuffer == null) {
+            batchRequestBuffer = new byte[MAX_DATAGRAM_SIZE];
+        }
+
+        int id = nextRequestId();
+        ByteBuffer frame = ByteBuffer.wrap(batchRequestBuffer);
+
+        Protocol.putHeader(frame, Protocol.OP_SWAP_BATCH, Protocol.STATUS_OK, id, swapClientId());
+        Protocol.putVarInt(frame, to - from);
+        for (int i = from; i < to; i++) {
+            Protocol.putVarInt(frame, lines1[i]);
+            Protocol.putVarInt(frame, lines2[i]);
+        }
+
+        packet.setData(batchRequestBuffer, 0, frame.position());
+        exchangeWithRS(batchBuffer, id);
+
+        ByteBuffer reply = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+
+        //Errore generale (o risposta non binaria): lo stesso messaggio per tutte le coppie.
+        if (!Protocol.isBinary(reply) || Protocol.getStatus(reply) != Protocol.STATUS_OK) {
+            Arrays.fill(esiti, from, to, decodeReply(packet));
+            return;
+        }
+
+        reply.position(Protocol.HEADER_SIZE);
+
+        if (Protocol.getVarInt(reply) != to - from || reply.remaining() < to - from) {
+            Arrays.fill(esiti, from, to, "Errore del server nello swap");
+            return;
+        }
+
+        for (int i = from; i < to; i++) {
+            switch (reply.get()) {
+                case Protocol.STATUS_OK:
+                    esiti[i] = "OK";
+                    break;
+                case Protocol.STATUS_OUT_OF_RANGE:
+                    esiti[i] = "Riga fuori dalla dimensione del file";
+                    break;
+                case Protocol.STATUS_MALFORMED:
+                    esiti[i] = "Coppia malformata";
+                    break;
+                default:
+                    esiti[i] = "Errore del server nello swap";
+                    break;
+            }
+        }
+    }
+
+    //Invia un datagramma di swap multiplo e decodifica gli esiti delle coppie [from, to).
+    private void sendBatch(String richiesta, String[] esiti, int from, int to) throws IOException {
+        int id = nextRequestId();
+
+        //Imposto la richiesta.
+        try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream()) {
+            try (DataOutputStream dataStream = new DataOutputStream(byteStream)) {
+                dataStream.writeUTF(swapTag(id) + richiesta);
+                packet.setData(byteStream.toByteArray());
+            }
+        }
+
+        //Invio la richiesta e attendo risposta.
+        exchangeWithRS(batchBuffer, id);
+
+        //Decodifico la risposta: un carattere per coppia, altrimenti un errore generale.
+        String result;
+        try (ByteArrayInputStream byteStream = new ByteArrayInputStream(packet.getData(), 0, packet.getLength())) {
+            try (DataInputStream dataStream = new DataInputStream(byteStream)) {
+                result = dataStream.readUTF();
+                result = result.substring(Protocol.requestTagLength(result));
+            }
+        }
+
+        boolean perCoppia = result.length() == to - from && result.matches("[+RME]*");
+
+        for (int i = from; i < to; i++) {
+            if (!perCoppia) {
+                esiti[i] = result;
+                continue;
+            }
+
+            switch (result.charAt(i - from)) {
+                case '+':
+                    esiti[i] = "OK";
+                    break;
+                case 'R':
+                    esiti[i] = "Riga fuori dalla dimensione del file";
+                    break;
+                case 'M':
+                    esiti[i] = "Coppia malformata";
+                    break;
+                default:
+                    esiti[i] = "Errore del server nello swap";
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Chiede al row swap server le sue metriche (comando STATS).
+     *
+     * @return Contatori e tempi per fase (in microsecondi), una riga per voce.
+     * @throws IOException Errore dovuto alla socket, stream
+     */
+    public String requestStats() throws IOException {
+        //Devo verificare che la rete sia inizializzata.
+        if (!networkState) throw new IllegalStateException("Bisogna inizializzare la rete prima");
+
+        //Devo verificare che sia già stato trovato il servizio.
+        if (!isPortValid(portRS)) throw new IllegalStateException("Bisogna cercare il servizio prima");
+
+        //La risposta può superare il buffer delle risposte brevi.
+        if (batchBuffer == null) {
+            batchBuffer = new byte[MAX_DATAGRAM_SIZE];
+        }
+
+        if (getFormatRS() == PROTOCOL_BINARY) {
+            int id = nextRequestId();
+            byte[] frame = new byte[Protocol.HEADER_SIZE];
+            Protocol.putHeader(ByteBuffer.wrap(frame), Protocol.OP_STATS, Protocol.STATUS_OK, id);
+            packet.setData(frame);
+            exchangeWithRS(batchBuffer, id);
+        } else {
+            int id = nextRequestId();
+            packet.setData(textFrame("#" + id + "#STATS"));
+            exchangeWithRS(batchBuffer, id);
+        }
+
+        String stats = decodeReply(packet);
+        return stats.substring(Protocol.requestTagLength(stats));
+    }
+
+    /**
+     * Sceglie il formato dei datagrammi: PROTOCOL_AUTO (default) negozia il binario con ogni server,
+     * PROTOCOL_TEXT e PROTOCOL_BINARY lo impongono.
+     *
+     * @param protocol PROTOCOL_AUTO, PROTOCOL_TEXT o PROTOCOL_BINARY
+     */
+    public void setProtocol(int protocol) {
+        if (protocol != PROTOCOL_AUTO && protocol != PROTOCOL_TEXT && protocol != PROTOCOL_BINARY) {
+            throw new IllegalArgumentException("Formato non valido");
+        }
+
+        this.protocol = protocol;
+        this.formatDS = protocol;
+        this.formatRS = protocol;
+    }
+
+    private int getFormatDS() throws IOException {
+        if (formatDS == PROTOCOL_AUTO) {
+            formatDS = negotiate(addressDS, portDS);
+        }
+        return formatDS;
+    }
+
+    private int getFormatRS() throws IOException {
+        if (formatRS == PROTOCOL_AUTO) {
+            formatRS = negotiate(addressRS, portRS);
+        }
+        return formatRS;
+    }
+
+    //Manda un PING binario: i server che conoscono il formato rispondono con un frame, gli altri con una stringa.
+    //Senza risposta entro NEGOTIATE_TIMEOUT_MILLIS (datagramma perso o server vecchio) si usa il testo.
+    private synchronized int negotiate(InetAddress address, int port) throws IOException {
+        byte[] frame = new byte[Protocol.HEADER_SIZE];
+        Protocol.putHeader(ByteBuffer.wrap(frame), Protocol.OP_PING, Protocol.STATUS_OK, nextRequestId());
+
+        DatagramPacket reply = new DatagramPacket(new byte[DEFAULT_bufferSize], DEFAULT_bufferSize);
+        int timeout = socket.getSoTimeout();
+
+        socket.setSoTimeout(timeout == 0 ? NEGOTIATE_TIMEOUT_MILLIS : Math.min(timeout, NEGOTIATE_TIMEOUT_MILLIS));
+
+        try {
+            socket.send(new DatagramPacket(frame, frame.length, address, port));
+            socket.receive(reply);
+        } catch (SocketTimeoutException e) {
+            return PROTOCOL_TEXT;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+
+        return Protocol.isBinary(reply.getData(), 0, reply.getLength()) ? PROTOCOL_BINARY : PROTOCOL_TEXT;
+    }
+
+    //Gli id sono sempre non negativi (il prefisso di testo "#id#" contiene solo cifre).
+    private int nextRequestId() {
+        return nextRequestId.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    private static byte[] lookupFrame(int id, String filename) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER_SIZE + Protocol.varIntSize(name.length) + name.length);
+        Protocol.putHeader(frame, Protocol.OP_LOOKUP, Protocol.STATUS_OK, id);
+        Protocol.putBytes(frame, name);
+        return frame.array();
+    }
+
+    private static byte[] swapFrame(int id, long clientId, int line1, int line2) {
+        ByteBuffer frame = ByteBuffer.allocate(Protocol.headerSize(clientId) + Protocol.varIntSize(line1) + Protocol.varIntSize(line2));
+        Protocol.putHeader(frame, Protocol.OP_SWAP, Protocol.STATUS_OK, id, clientId);
+        Protocol.putVarInt(frame, line1);
+        Protocol.putVarInt(frame, line2);
+        return frame.array();
+    }
+
+    private static byte[] textFrame(String richiesta) throws IOException {
+        try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream(); DataOutputStream dataStream = new DataOutputStream(byteStream)) {
+            dataStream.writeUTF(richiesta);
+            dataStream.flush();
+            return byteStream.toByteArray();
+        }
+    }
+
+    //Decodifica la risposta ricevuta nel pacchetto, binaria o di testo.
+    private static String decodeReply(DatagramPacket reply) throws IOException {
+        if (Protocol.isBinary(reply.getData(), 0, reply.getLength())) {
+            return decodeBinaryReply(ByteBuffer.wrap(reply.getData(), 0, reply.getLength()));
+        }
+
+        try (DataInputStream dataStream = new DataInputStream(new ByteArrayInputStream(reply.getData(), 0, reply.getLength()))) {
+            return dataStream.readUTF();
+        }
+    }
+
+    //Traduce una risposta binaria nella stessa stringa che il server manderebbe in formato testo.
+    private static String decodeBinaryReply(ByteBuffer reply) throws ProtocolException {
+        byte status = Protocol.getStatus(reply);
+        reply.position(Protocol.HEADER_SIZE);
+
+        if (status == Protocol.STATUS_MALFORMED) {
+            return "richiesta malformata";
+        }
+
+        if (status == Protocol.STATUS_UNKNOWN_OP) {
+            return "richiesta non supportata dal server";
+        }
+
+        switch (Protocol.getOpcode(reply)) {
+            case Protocol.OP_LOOKUP:
+                if (status != Protocol.STATUS_OK) {
+                    return FILE_NOT_FOUND;
+                }
+                InetSocketAddress address = Protocol.getAddress(reply);
+                return address.getAddress().getHostAddress() + ":" + address.getPort();
+            case Protocol.OP_SWAP:
+                if (status == Protocol.STATUS_OK) {
+                    return "OK";
+                }
+                if (status == Protocol.STATUS_OUT_OF_RANGE) {
+                    return "Riga 1 o Riga 2 supera la dimensione del file. (" + Protocol.getVarInt(reply) + ")";
+                }
+                return Protocol.getString(reply);
+            case Protocol.OP_STATS:
+                return Protocol.getString(reply);
+            default:
+                return "Errore del server";
+        }
+    }
+
+    /**
+     * Imposta quante richieste asincrone possono essere in attesa di risposta insieme:
+     * oltre il limite le chiamate asincrone attendono che se ne completi una.
+     * Va chiamato prima della prima richiesta asincrona.
+     *
+     * @param maxOutstanding numero massimo di richieste in volo (>= 1)
+     */
+    public void setMaxOutstanding(int maxOutstanding) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("Numero di richieste in volo non valido");
+        }
+
+        if (asyncSocket != null) {
+            throw new IllegalStateException("Rete asincrona già inizializzata");
+        }
+
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * Imposta dopo quanto una richiesta asincrona senza risposta viene completata con TimeoutException.
+     *
+     * @param millis timeout in millisecondi (> 0)
+     */
+    public void setAsyncTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Timeout non valido");
+        }
+
+        this.asyncTimeoutMillis = millis;
+    }
+
+    //Crea la socket asincrona e il thread che riceve le risposte.
+    private synchronized void initAsyncNetwork() throws SocketException {
+        if (asyncSocket != null) {
+            return;
+        }
+
+        //Devo verificare che la rete sia inizializzata.
+        if (!networkState) throw new IllegalStateException("Bisogna inizializzare la rete prima");
+
+        outstanding = new Semaphore(maxOutstanding);
+        asyncSocket = new DatagramSocket();
+        asyncReceiver = new Thread(this::receiveAsyncReplies, "RSClient-async");
+        asyncReceiver.setDaemon(true);
+        asyncReceiver.start();
+    }
+
+    /**
+     * Chiude la socket asincrona: le richieste ancora in attesa vengono completate con eccezione.
+     */
+    public synchronized void closeAsync() {
+        if (asyncSocket == null) {
+            return;
+        }
+
+        asyncSocket.close();
+
+        try {
+            asyncReceiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        asyncSocket = null;
+        asyncReceiver = null;
+    }
+
+    //Ciclo del thread ricevitore: ogni risposta completa la richiesta con lo stesso id
+    //(nell'header se binaria, nel prefisso "#id#" o "#clientId:id#" se di testo).
+    private void receiveAsyncReplies() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        DatagramSocket socket = asyncSocket;
+
+        while (!socket.isClosed()) {
+            reply.setData(buffer);
+
+            try {
+                socket.receive(reply);
+            } catch (IOException e) {
+                break;
+            }
+
+            int id;
+            String risposta;
+
+            try {
+                if (Protocol.isBinary(buffer, 0, reply.getLength())) {
+                    ByteBuffer frame = ByteBuffer.wrap(buffer, 0, reply.getLength());
+                    id = Protocol.getRequestId(frame);
+                    risposta = decodeBinaryReply(frame);
+                } else {
+                    risposta = decodeReply(reply);
+                    int tagLength = Protocol.requestTagLength(risposta);
+                    if (tagLength == 0) {
+                        continue;
+                    }
+                    id = Protocol.getTagRequestId(risposta.substring(0, tagLength));
+                    risposta = risposta.substring(tagLength);
+                }
+            } catch (IOException e) {
+                continue; //risposta malformata: la richiesta scadrà per timeout
+            }
+
+            CompletableFuture<String> future = pending.get(id);
+
+            //Risposte duplicate o arrivate dopo il timeout vengono ignorate.
+            if (future != null) {
+                future.complete(risposta);
+            }
+        }
+
+        //La socket è chiusa: nessuna risposta potrà più arrivare.
+        for (CompletableFuture<String> future : pending.values()) {
+            future.completeExceptionally(new SocketException("Socket asincrona chiusa"));
+        }
+    }
+
+    //Registra una nuova richiesta in volo (attende se ce ne sono già maxOutstanding) e ne ritorna l'id.
+    private int beginAsync(CompletableFuture<String> future) throws IOException {
+        initAsyncNetwork();
+
+        try {
+            outstanding.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrotto in attesa di una richiesta libera");
+        }
+
+        int id = nextRequestId();
+        pending.put(id, future);
+
+        future.whenComplete((esito, ex) -> {
+            pending.remove(id, future);
+            outstanding.release();
+        });
+
+        return id;
+    }
+
+    //Invia la richiesta già codificata e ritorna il future, completato dal thread ricevitore.
+    private CompletableFuture<String> sendAsync(CompletableFuture<String> future, byte[] data, InetAddress address, int port) throws IOException {
+        DatagramPacket datagram = new DatagramPacket(data, data.length, address, port);
+
+        try {
+            asyncSocket.send(datagram);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+
+        int count = retries;
+
+        if (count > 0) {
+            scheduleRetry(future, asyncSocket, datagram, asyncTimeoutMillis / (count + 1), count);
+        }
+
+        return future.orTimeout(asyncTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //Ritrasmette il datagramma ogni intervalMillis finché la richiesta non si completa, al massimo left volte.
+    private static void scheduleRetry(CompletableFuture<String> future, DatagramSocket socket, DatagramPacket datagram,
+                                      long intervalMillis, int left) {
+        CompletableFuture.delayedExecutor(intervalMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+
+            try {
+                socket.send(datagram);
+            } catch (IOException e) {
+                return; //la richiesta scadrà per timeout
+            }
+
+            if (left > 1) {
+                scheduleRetry(future, socket, datagram, intervalMillis, left - 1);
+            }
+        });
+    }
+
+    /**
+     * Versione asincrona di requestService: il future vale null se il servizio è stato trovato
+     * (e impostato come servizio corrente), altrimenti il messaggio di errore del discovery server.
+     *
+     * @param filename nome del file in qui fare lo swap
+     * @return future con l'esito della richiesta
+     * @throws IOException Errore dovuto alla socket
+     */
+    public CompletableFuture<String> requestServiceAsync(String filename) throws IOException {
+        //Controllo argomenti
+        if (filename.isBlank()) {
+            throw new IllegalArgumentException("Filename vuoto");
+        }
+
+        //Devo verificare che la rete sia inizializzata.
+        if (!networkState) throw new IllegalStateException("Bisogna inizializzare la rete prima");
+
+        String key = addressDS.getHostAddress() + ":" + portDS + "/" + filename;
+        String cached = discoveryCache.get(key);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(applyServiceReply(key, cached));
+        }
+
+        boolean binary = getFormatDS() == PROTOCOL_BINARY;
+        CompletableFuture<String> future = new CompletableFuture<>();
+        int id = beginAsync(future);
+        byte[] data = binary ? lookupFrame(id, filename) : textFrame("#" + id + "#" + filename);
+
+        return sendAsync(future, data, addressDS, portDS).thenApply(risposta -> {
+            String esito = applyServiceReply(key, risposta);
+            discoveryCache.put(key, risposta, esito == null);
+            return esito;
+        });
+    }
+
+    /**
+     * Versione asincrona di swapLines: più swap possono essere in volo insieme
+     * (fino a setMaxOutstanding), le risposte vengono abbinate tramite id.
+     *
+     * @param line1 linea 1 da swappare
+     * @param line2 linea 2 da swappare
+     * @return future con l'esito del server; TimeoutException se la risposta non arriva.
+     * @throws IOException Errore dovuto alla socket
+     */
+    public CompletableFuture<String> swapLinesAsync(int line1, int line2) throws IOException {
+        //Controllo che le linee siano valide
+        if (line1 < 0 || line2 < 0) {
+            throw new IllegalArgumentException("Linee inserite non valide (< 0)");
+        }
+
+        //Linee uguali non devo richiedere il server.
+        if (line1 == line2) {
+            return CompletableFuture.completedFuture("Esito POSITIVO (Local Check)");
+        }
+
+        //Devo verificare che la rete sia inizializzata.
+        if (!networkState) throw new IllegalStateException("Bisogna inizializzare la rete prima");
+
+        //Devo verificare che sia già stato trovato il servizio.
+        if (!isPortValid(portRS)) throw new IllegalStateException("Bisogna cercare il servizio prima");
+
+        String key = serviceKey;
+        InetAddress address = addressRS;
+        int port = portRS;
+        boolean binary = getFormatRS() == PROTOCOL_BINARY;
+        RowSwapEvents.ClientSwap event = beginSwapEvent();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        int id = beginAsync(future);
+        byte[] data = binary ? swapFrame(id, swapClientId(), line1, line2) : textFrame(swapTag(id) + line1 + "," + line2);
+
+        return sendAsync(future, data, address, port).whenComplete((esito, ex) -> {
+            //Il row swap server non risponde: tolgo la sua risoluzione dalla cache.
+            if (ex instanceof TimeoutException && key != null) {
+                discoveryCache.remove(key);
+            }
+
+            //La dimensione della risposta non arriva fin qui: resta 0.
+            commitSwap(event, line1, line2, true, data.length, 0, ex == null ? esito : ex.toString());
+        });
+    }
+
     public static void main(String[] args) {
         //RSClient IPDS portDS fileName
 
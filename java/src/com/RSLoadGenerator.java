@@ -0,0 +1,535 @@
+package com;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+//Generatore di carico UDP: N client RSClient risolvono il file tramite il DS e poi mandano swap a ritmo fisso,
+//tutti insieme, per una durata data. Il carico è a ciclo aperto: ogni richiesta ha un istante di invio previsto
+//(calendario fisso, indipendente dalle risposte) e la latenza è misurata da quell'istante, non da quando è partita
+//davvero. Così, se il server rallenta, l'attesa accumulata dalle richieste in ritardo finisce nei percentili
+//invece di sparire (coordinated omission).
+//
+//Senza -ds avvia nello stesso processo un DS e un RS su loopback, così la misura non dipende dalla rete.
+public class RSLoadGenerator {
+
+    private static final int PARAM_ERR = 1;
+    private static final int SETUP_ERR = 2;
+    private static final int SERVICE_ERR = 3;
+    private static final int LOAD_ERR = 4;
+
+    private static final int DEFAULT_CLIENTS = 4;
+    private static final int DEFAULT_RATE = 1000;
+    private static final int DEFAULT_DURATION_SECONDS = 10;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    private static final int DEFAULT_MAX_OUTSTANDING = 1024;
+    //Porte del DS e dell'RS locali: portaBase (client DS), portaBase + 1 (RS -> DS), portaBase + 2 (RS).
+    private static final int DEFAULT_LOCAL_PORT = 47000;
+
+    private final InetAddress addressDS;
+    private final int portDS;
+    private final String filename;
+
+    private int clients = DEFAULT_CLIENTS;
+    private int rate = DEFAULT_RATE;
+    private int durationSeconds = DEFAULT_DURATION_SECONDS;
+    private int warmupSeconds = 0;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private int retries = 0;
+    private int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+    private int protocol = RSClient.PROTOCOL_AUTO;
+    private int fileLineCount = -1;
+
+    //Latenze in microsecondi delle richieste riuscite dopo il warmup.
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    //Richieste concluse (in qualunque modo) dopo il warmup, per il throughput.
+    private final AtomicLong measured = new AtomicLong();
+    //Ritardo massimo del mittente rispetto al calendario (ns): se cresce il client non regge il ritmo richiesto.
+    private final AtomicLong maxSendLag = new AtomicLong();
+
+    private long measuredNanos;
+    //Risposta dell'RS al comando STATS a fine prova (null se non disponibile).
+    private String serverStats;
+
+    public RSLoadGenerator(InetAddress addressDS, int portDS, String filename) {
+        this.addressDS = addressDS;
+        this.portDS = portDS;
+        this.filename = filename;
+    }
+
+    //Un client: un RSClient con la sua socket asincrona e un thread che invia secondo il calendario.
+    private final class LoadClient implements Runnable {
+
+        private final RSClient client;
+        private final long start;
+        private final long end;
+        private final long warmupEnd;
+        private final long intervalNanos;
+
+        private LoadClient(RSClient client, long start, long end, long warmupEnd, long intervalNanos) {
+            this.client = client;
+            this.start = start;
+            this.end = end;
+            this.warmupEnd = warmupEnd;
+            this.intervalNanos = intervalNanos;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            for (long intended = start; intended < end; intended += intervalNanos) {
+                long now;
+                while ((now = System.nanoTime()) < intended) {
+                    LockSupport.parkNanos(intended - now);
+                }
+
+                long lag = now - intended;
+                long current;
+                while (lag > (current = maxSendLag.get()) && !maxSendLag.compareAndSet(current, lag)) {
+                    //riprovo
+                }
+
+                //Due righe diverse, altrimenti il client risponde da solo senza interrogare il server.
+                int line1 = random.nextInt(fileLineCount);
+                int line2 = random.nextInt(fileLineCount - 1);
+                if (line2 >= line1) {
+                    line2++;
+                }
+
+                final long scheduled = intended;
+                final boolean record = intended >= warmupEnd;
+                sent.incrementAndGet();
+
+                CompletableFuture<String> future;
+
+                try {
+                    future = client.swapLinesAsync(line1, line2);
+                } catch (IOException | RuntimeException e) {
+                    complete(scheduled, record, null, e);
+                    continue;
+                }
+
+                future.whenComplete((esito, ex) -> complete(scheduled, record, esito, ex));
+            }
+        }
+    }
+
+    private void complete(long scheduled, boolean record, String esito, Throwable ex) {
+        long latency = System.nanoTime() - scheduled;
+
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+
+        if (ex instanceof TimeoutException) {
+            timeouts.incrementAndGet();
+        } else if (ex != null || !"OK".equals(esito)) {
+            errors.incrementAndGet();
+        } else if (record) {
+            histogram.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        }
+
+        if (record) {
+            measured.incrementAndGet();
+        }
+
+        completed.incrementAndGet();
+    }
+
+    //Crea i client, risolve il file sul DS e lancia il carico. Ritorna quando tutte le richieste sono concluse
+    //(risposta, errore o timeout).
+    public void run() throws IOException, InterruptedException {
+        if (clients < 1 || rate < 1 || durationSeconds < 1 || warmupSeconds < 0 || warmupSeconds >= durationSeconds) {
+            throw new IllegalArgumentException("Parametri di carico non validi");
+        }
+
+        ArrayList<RSClient> rsClients = new ArrayList<>();
+
+        for (int i = 0; i < clients; i++) {
+            RSClient client = new RSClient(addressDS, portDS);
+            client.initNetwork();
+            client.setProtocol(protocol);
+            client.setMaxOutstanding(maxOutstanding);
+            client.setAsyncTimeout(timeoutMillis);
+            client.setRetries(retries);
+
+            String esito = client.requestService(filename);
+            if (esito != null) {
+                throw new IOException("Servizio non trovato per " + filename + ": " + esito.trim());
+            }
+
+            rsClients.add(client);
+        }
+
+        if (fileLineCount < 0) {
+            fileLineCount = probeLineCount(rsClients.get(0));
+        }
+
+        if (fileLineCount < 2) {
+            throw new IOException("Il file deve avere almeno due righe");
+        }
+
+        //Ogni client manda rate / clients richieste al secondo; gli avvii sono sfalsati di un intervallo / clients
+        //così il ritmo complessivo è uniforme.
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * clients / rate;
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        ArrayList<Thread> senders = new ArrayList<>();
+
+        for (int i = 0; i < clients; i++) {
+            LoadClient loadClient = new LoadClient(rsClients.get(i), start + intervalNanos * i / clients, end, warmupEnd, intervalNanos);
+            Thread sender = new Thread(loadClient, "RSLoadGenerator-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+
+        //Avanzamento una volta al secondo finchè i mittenti lavorano.
+        long lastCompleted = 0;
+        for (Thread sender : senders) {
+            while (sender.isAlive()) {
+                sender.join(1000);
+                long done = completed.get();
+                System.out.printf(Locale.ROOT, "inviate %d, concluse %d (%d/s), timeout %d, errori %d%n",
+                        sent.get(), done, done - lastCompleted, timeouts.get(), errors.get());
+                lastCompleted = done;
+            }
+        }
+
+        //Le ultime richieste hanno al massimo timeoutMillis per concludersi.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis + 1000);
+        while (completed.get() < sent.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        measuredNanos = end - warmupEnd;
+
+        //Le metriche del server dicono dove è andato il tempo (disco o rete).
+        try {
+            serverStats = rsClients.get(0).requestStats();
+        } catch (IOException e) {
+            serverStats = null;
+        }
+
+        for (RSClient client : rsClients) {
+            client.closeAsync();
+        }
+    }
+
+    //Senza -lines il numero di righe si ricava dalla risposta fuori range dell'RS "... (numeroRighe)".
+    private static int probeLineCount(RSClient client) throws IOException {
+        String esito = client.swapLines(0, Integer.MAX_VALUE);
+        int open = esito.lastIndexOf('(');
+        int close = esito.lastIndexOf(')');
+
+        try {
+            return Integer.parseInt(esito.substring(open + 1, close));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Impossibile ricavare il numero di righe (usare -lines=N): " + esito.trim());
+        }
+    }
+
+    public void printReport() {
+        double seconds = measuredNanos / 1e9;
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Client: %d, ritmo richiesto: %d req/s, durata: %d s (warmup %d s)%n",
+                clients, rate, durationSeconds, warmupSeconds);
+        System.out.printf(Locale.ROOT, "Richieste: inviate %d, concluse %d, riuscite %d, timeout %d, errori %d, senza esito %d%n",
+                sent.get(), completed.get(), histogram.getCount(), timeouts.get(), errors.get(), sent.get() - completed.get());
+        System.out.printf(Locale.ROOT, "Throughput ottenuto: %.1f req/s (riuscite %.1f req/s)%n",
+                measured.get() / seconds, histogram.getCount() / seconds);
+        System.out.printf(Locale.ROOT, "Ritardo massimo di invio: %.3f ms%n", maxSendLag.get() / 1e6);
+        System.out.println("Latenza dall'invio previsto (ms):");
+        System.out.printf(Locale.ROOT, "  media  %10.3f%n", histogram.getMean() / 1000.0);
+        System.out.printf(Locale.ROOT, "  p50    %10.3f%n", histogram.getPercentile(50) / 1000.0);
+        System.out.printf(Locale.ROOT, "  p90    %10.3f%n", histogram.getPercentile(90) / 1000.0);
+        System.out.printf(Locale.ROOT, "  p99    %10.3f%n", histogram.getPercentile(99) / 1000.0);
+        System.out.printf(Locale.ROOT, "  p99.9  %10.3f%n", histogram.getPercentile(99.9) / 1000.0);
+        System.out.printf(Locale.ROOT, "  max    %10.3f%n", histogram.getMax() / 1000.0);
+
+        if (serverStats != null) {
+            System.out.println("Metriche del server (STATS):");
+            System.out.print(serverStats);
+        }
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public void setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public void setWarmupSeconds(int warmupSeconds) {
+        this.warmupSeconds = warmupSeconds;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public void setMaxOutstanding(int maxOutstanding) {
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public void setProtocol(int protocol) {
+        this.protocol = protocol;
+    }
+
+    public void setFileLineCount(int fileLineCount) {
+        this.fileLineCount = fileLineCount;
+    }
+
+    //Avvia DS e RS su loopback nello stesso processo; se il file non esiste lo crea con lines righe.
+    private static RowSwapServer startLocalServers(int basePort, String filename, int lines, String[] rsOptions) throws IOException {
+        Path path = Paths.get(filename);
+
+        if (!Files.exists(path)) {
+            if (lines < 2) {
+                throw new IOException("Il file " + filename + " non esiste (usare -lines=N per crearlo)");
+            }
+
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                content.append("riga ").append(i).append('\n');
+            }
+            Files.write(path, content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        DiscoveryServer ds = new DiscoveryServer(basePort, basePort + 1, true);
+        ds.start();
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        RowSwapServer server = new RowSwapServer(loopback, basePort + 1, loopback, basePort + 2, filename);
+
+        boolean lazyMode = false;
+        boolean journalMode = false;
+
+        for (String option : rsOptions) {
+            if (option.equalsIgnoreCase("-mmap")) {
+                server.setMappedMode(true);
+            } else if (option.equalsIgnoreCase("-lazy")) {
+                lazyMode = true;
+            } else if (option.equalsIgnoreCase("-journal")) {
+                journalMode = true;
+            } else if (option.toLowerCase().startsWith("-workers=")) {
+                server.setWorkers(Integer.parseInt(option.substring(option.indexOf('=') + 1)));
+            }
+        }
+
+        server.setDeferredMode(lazyMode, journalMode, server.getCommitMillis(), server.getCommitSwaps());
+        server.checkFileValidity();
+        server.countLines();
+        server.initDeferredMode();
+
+        if (!server.isFileValid()) {
+            server.close();
+            throw new IOException("Impossibile aprire il r/w il file " + filename);
+        }
+
+        server.registerOnDiscovery();
+
+        if (!server.isRegistered()) {
+            server.close();
+            throw new IOException("Registrazione sul DS fallita: " + server.getDiscoveryResultString());
+        }
+
+        server.start();
+        return server;
+    }
+
+    public static void main(String[] args) {
+        //RSLoadGenerator nomeFile [-ds=IP:porta] [-local=portaBase] [-clients=N] [-rate=R] [-duration=S] [-warmup=S]
+        //                [-timeoutMs=T] [-retries=N] [-outstanding=W] [-lines=N] [-text|-binary] [-mmap] [-lazy] [-journal] [-workers=N]
+        //Senza -ds avvia DS e RS locali (le ultime quattro opzioni valgono solo per l'RS locale).
+        final String usage = "RSLoadGenerator nomeFile [-ds=IP:porta] [-local=portaBase] [-clients=N] [-rate=R] [-duration=S] [-warmup=S] "
+                + "[-timeoutMs=T] [-retries=N] [-outstanding=W] [-lines=N] [-text|-binary] [-mmap] [-lazy] [-journal] [-workers=N]";
+
+        if (args.length < 1 || args[0].startsWith("-")) {
+            System.out.println(usage);
+            System.exit(PARAM_ERR);
+        }
+
+        String filename = args[0];
+        String ds = null;
+        int basePort = DEFAULT_LOCAL_PORT;
+        int clients = DEFAULT_CLIENTS;
+        int rate = DEFAULT_RATE;
+        int duration = DEFAULT_DURATION_SECONDS;
+        int warmup = 0;
+        long timeout = DEFAULT_TIMEOUT_MILLIS;
+        int retries = 0;
+        int outstanding = DEFAULT_MAX_OUTSTANDING;
+        int lines = -1;
+        int protocol = RSClient.PROTOCOL_AUTO;
+        ArrayList<String> rsOptions = new ArrayList<>();
+
+        for (int i = 1; i < args.length; i++) {
+            String option = args[i].toLowerCase();
+            String value = option.substring(option.indexOf('=') + 1);
+
+            try {
+                if (option.startsWith("-ds=")) {
+                    ds = args[i].substring(args[i].indexOf('=') + 1);
+                } else if (option.startsWith("-local=")) {
+                    basePort = Integer.parseInt(value);
+                } else if (option.startsWith("-clients=")) {
+                    clients = Integer.parseInt(value);
+                } else if (option.startsWith("-rate=")) {
+                    rate = Integer.parseInt(value);
+                } else if (option.startsWith("-duration=")) {
+                    duration = Integer.parseInt(value);
+                } else if (option.startsWith("-warmup=")) {
+                    warmup = Integer.parseInt(value);
+                } else if (option.startsWith("-timeoutms=")) {
+                    timeout = Long.parseLong(value);
+                } else if (option.startsWith("-retries=")) {
+                    retries = Integer.parseInt(value);
+                } else if (option.startsWith("-outstanding=")) {
+                    outstanding = Integer.parseInt(value);
+                } else if (option.startsWith("-lines=")) {
+                    lines = Integer.parseInt(value);
+                } else if (option.equals("-text")) {
+                    protocol = RSClient.PROTOCOL_TEXT;
+                } else if (option.equals("-binary")) {
+                    protocol = RSClient.PROTOCOL_BINARY;
+                } else if (option.equals("-mmap") || option.equals("-lazy") || option.equals("-journal") || option.startsWith("-workers=")) {
+                    if (option.startsWith("-workers=")) {
+                        Integer.parseInt(value);
+                    }
+                    rsOptions.add(option);
+                } else {
+                    System.err.println("Opzione sconosciuta: " + args[i]);
+                    System.out.println(usage);
+                    System.exit(PARAM_ERR);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Opzione malformata: " + args[i]);
+                System.exit(PARAM_ERR);
+            }
+        }
+
+        if (clients < 1 || rate < 1 || duration < 1 || warmup < 0 || warmup >= duration || timeout <= 0 || retries < 0 || outstanding < 1) {
+            System.err.println("Parametri di carico non validi");
+            System.exit(PARAM_ERR);
+        }
+
+        InetAddress addressDS = null;
+        int portDS = -1;
+        RowSwapServer localServer = null;
+
+        if (ds != null) {
+            int colon = ds.lastIndexOf(':');
+
+            try {
+                addressDS = InetAddress.getByName(ds.substring(0, colon));
+                portDS = Integer.parseInt(ds.substring(colon + 1));
+            } catch (UnknownHostException | NumberFormatException | IndexOutOfBoundsException e) {
+                System.err.println("DS malformato (IP:porta): " + ds);
+                System.exit(PARAM_ERR);
+            }
+        } else {
+            try {
+                localServer = startLocalServers(basePort, filename, lines, rsOptions.toArray(new String[0]));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Impossibile avviare DS e RS locali: " + e.getLocalizedMessage());
+                System.exit(SETUP_ERR);
+            }
+
+            System.out.println("DS locale su " + basePort + "/" + (basePort + 1) + ", RS locale su " + (basePort + 2)
+                    + " (" + localServer.getFileLineCount() + " righe)");
+
+            addressDS = InetAddress.getLoopbackAddress();
+            portDS = basePort;
+            lines = localServer.getFileLineCount();
+        }
+
+        RSLoadGenerator generator = new RSLoadGenerator(addressDS, portDS, filename);
+        generator.setClients(clients);
+        generator.setRate(rate);
+        generator.setDurationSeconds(duration);
+        generator.setWarmupSeconds(warmup);
+        generator.setTimeoutMillis(timeout);
+        generator.setRetries(retries);
+        generator.setMaxOutstanding(outstanding);
+        generator.setProtocol(protocol);
+        generator.setFileLineCount(lines);
+
+        try {
+            generator.run();
+        } catch (SocketException e) {
+            System.err.println("Impossibile inizializzare la rete: " + e.getLocalizedMessage());
+            System.exit(SETUP_ERR);
+        } catch (IOException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.exit(SERVICE_ERR);
+        } catch (InterruptedException e) {
+            System.exit(LOAD_ERR);
+        }
+
+        generator.printReport();
+
+        //L'RS locale materializza gli swap in sospeso prima di chiudere; il DS non ha un arresto: termino il processo.
+        if (localServer != null) {
+            localServer.close();
+
+            try {
+                localServer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        System.exit(0);
+    }
+}
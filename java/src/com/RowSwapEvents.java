@@ -0,0 +1,204 @@
+package com;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+//Eventi JFR di DiscoveryServer, RowSwapServer e RSClient: si raccolgono con una normale registrazione
+//(es. java -XX:StartFlightRecording=settings=profile ...) e si leggono con jfr print --categories RowSwap.
+//Chi emette controlla prima il tipo (es. SWAP_TYPE.isEnabled()) e istanzia l'evento solo se è abilitato,
+//poi segue lo schema begin() / shouldCommit() / commit(): senza registrazione non si alloca niente
+//e il costo si riduce a un controllo.
+public final class RowSwapEvents {
+
+    private RowSwapEvents() {
+    }
+
+    //Tipi degli eventi, per controllare se sono abilitati senza istanziarli.
+    static final EventType SWAP_TYPE = EventType.getEventType(Swap.class);
+    static final EventType TMP_FILE_WRITE_TYPE = EventType.getEventType(TmpFileWrite.class);
+    static final EventType FILE_MOVE_TYPE = EventType.getEventType(FileMove.class);
+    static final EventType REINDEX_TYPE = EventType.getEventType(Reindex.class);
+    static final EventType LOOKUP_TYPE = EventType.getEventType(Lookup.class);
+    static final EventType REGISTRATION_TYPE = EventType.getEventType(Registration.class);
+    static final EventType CLIENT_LOOKUP_TYPE = EventType.getEventType(ClientLookup.class);
+    static final EventType CLIENT_SWAP_TYPE = EventType.getEventType(ClientSwap.class);
+
+    @Name("rowswap.Swap")
+    @Label("Swap")
+    @Category({"RowSwap", "Server"})
+    @Description("Swap di una o più coppie di righe eseguito da un RowSwapServer")
+    static final class Swap extends Event {
+        @Label("File")
+        String filename;
+
+        @Label("Riga 1")
+        @Description("Prima riga della (prima) coppia")
+        int line1;
+
+        @Label("Riga 2")
+        @Description("Seconda riga della (prima) coppia")
+        int line2;
+
+        @Label("Coppie")
+        int pairs;
+
+        @Label("Differito")
+        @Description("Swap registrato nella permutazione (e nel journal), il file lo aggiorna il compattatore")
+        boolean deferred;
+
+        @Label("Errore")
+        String error;
+    }
+
+    @Name("rowswap.TmpFileWrite")
+    @Label("Scrittura file temporaneo")
+    @Category({"RowSwap", "Server", "File"})
+    @Description("Riscrittura del file servito in un temporaneo, quando le righe scambiate hanno lunghezze diverse")
+    static final class TmpFileWrite extends Event {
+        @Label("File temporaneo")
+        String path;
+
+        @Label("Righe spostate")
+        int lines;
+
+        @Label("Byte copiati")
+        @Description("Parti non toccate, copiate dal kernel con transferTo")
+        @DataAmount
+        long bytesTransferred;
+
+        @Label("Byte scritti")
+        @Description("Contenuti spostati, scritti da user space")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Errore")
+        String error;
+    }
+
+    @Name("rowswap.FileMove")
+    @Label("Spostamento file")
+    @Category({"RowSwap", "Server", "File"})
+    @Description("Files.move del temporaneo sul file servito")
+    static final class FileMove extends Event {
+        @Label("Sorgente")
+        String source;
+
+        @Label("Destinazione")
+        String target;
+
+        @Label("Dimensione")
+        @DataAmount
+        long bytes;
+
+        @Label("Errore")
+        String error;
+    }
+
+    @Name("rowswap.Reindex")
+    @Label("Reindicizzazione")
+    @Category({"RowSwap", "Server", "File"})
+    @Description("Reindicizzazione del file servito dopo una modifica di un altro processo, con gli swap fermi")
+    static final class Reindex extends Event {
+        @Label("File")
+        String filename;
+
+        @Label("Solo coda")
+        @Description("File allungato: riscandita solo la parte dall'ultima riga indicizzata")
+        boolean append;
+
+        @Label("Righe prima")
+        int linesBefore;
+
+        @Label("Righe dopo")
+        int linesAfter;
+
+        @Label("Byte scanditi")
+        @DataAmount
+        long bytesScanned;
+
+        @Label("Swap scartati")
+        @Description("Swap differiti non ancora scritti, relativi al contenuto precedente")
+        int discardedSwaps;
+    }
+
+    @Name("rowswap.Lookup")
+    @Label("Lookup")
+    @Category({"RowSwap", "Discovery"})
+    @Description("Risoluzione di un file richiesta da un client al DiscoveryServer")
+    static final class Lookup extends Event {
+        @Label("File")
+        String filename;
+
+        @Label("Row swap server")
+        @Description("Indirizzo:porta del server del file, vuoto se il file non è registrato")
+        String rowSwapServer;
+
+        @Label("Binario")
+        boolean binary;
+    }
+
+    @Name("rowswap.Registration")
+    @Label("Registrazione")
+    @Category({"RowSwap", "Discovery"})
+    @Description("REGISTER o DISMISS di un row swap server sul DiscoveryServer")
+    static final class Registration extends Event {
+        @Label("Comando")
+        String command;
+
+        @Label("File")
+        String filename;
+
+        @Label("Row swap server")
+        String rowSwapServer;
+
+        @Label("Esito")
+        String result;
+    }
+
+    @Name("rowswap.ClientLookup")
+    @Label("Lookup del client")
+    @Category({"RowSwap", "Client"})
+    @Description("Risoluzione di un file da parte di RSClient, dalla cache o dal DiscoveryServer")
+    static final class ClientLookup extends Event {
+        @Label("File")
+        String filename;
+
+        @Label("Da cache")
+        boolean cached;
+
+        @Label("Esito")
+        @Description("Indirizzo:porta del row swap server oppure messaggio di errore")
+        String result;
+    }
+
+    @Name("rowswap.ClientSwap")
+    @Label("Swap del client")
+    @Category({"RowSwap", "Client"})
+    @Description("Richiesta di swap di RSClient, dall'invio alla risposta (o al timeout)")
+    static final class ClientSwap extends Event {
+        @Label("Riga 1")
+        int line1;
+
+        @Label("Riga 2")
+        int line2;
+
+        @Label("Asincrona")
+        boolean async;
+
+        @Label("Byte inviati")
+        @DataAmount
+        int bytesSent;
+
+        @Label("Byte ricevuti")
+        @DataAmount
+        int bytesReceived;
+
+        @Label("Esito")
+        String result;
+    }
+}
@@ -1,14 +1,49 @@
 package com;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Random;
 import java.util.StringTokenizer;
-
-public class RowSwapServer implements Runnable {
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class RowSwapServer {
 
     private static final int INV_ERR = 1;
     private static final int ARG_ERR = 2;
@@ -32,6 +67,9 @@ public class RowSwapServer implements Runnable {
     private static final String CMD_REGISTER = "REGISTER";
     private static final String CMD_DISMISS = "DISMISS";
 
+    //Comando dei client (al posto di "riga1,riga2"): risponde con le metriche del server.
+    private static final String CMD_STATS = "STATS";
+
     private static final int RESULT_OK = 0;
     private static final int RESULT_MALFORMED_REQUEST = 1;
     private static final int RESULT_UNKNOWN_COMMAND = 2;
@@ -68,13 +106,390 @@ public class RowSwapServer implements Runnable {
         return !(port < 1024 || port > 65536);
     }
 
-    private final Thread myThread;
-    private boolean closed = false;
-    private boolean fullyClosed = false;
+    //Ogni voce del journal è una coppia di interi (riga1, riga2).
+    private static final int JOURNAL_ENTRY_SIZE = 8;
+    //Il journal inizia con magic, versione e numero di sequenza della sua prima voce. Nel formato precedente
+    //(solo voci) la prima riga non può valere JOURNAL_MAGIC: è oltre MAX_PERMUTATION_LINES.
+    static final int JOURNAL_MAGIC = 0x52534A4C;
+    static final int JOURNAL_VERSION = 2;
+    static final int JOURNAL_HEADER_SIZE = 16;
+    //Checkpoint di una compattazione: le righe da scrivere sul posto o il temporaneo che sostituisce il file.
+    static final int CHECKPOINT_MAGIC = 0x52534350;
+    static final byte CHECKPOINT_IN_PLACE = 0;
+    static final byte CHECKPOINT_RENAME = 1;
+    private static final long DEFAULT_COMMIT_MILLIS = 1000;
+    private static final int DEFAULT_COMMIT_SWAPS = 1000;
+    //Oltre questo numero di righe la permutazione logica viene allocata fuori dallo heap.
+    static final int OFF_HEAP_PERMUTATION_LINES = 1 << 20;
+    //Un ByteBuffer è indicizzato con un int: oltre queste righe la permutazione non ci sta.
+    private static final int MAX_PERMUTATION_LINES = Integer.MAX_VALUE / Integer.BYTES;
+
+    private static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    //Cache delle risposte alle richieste idempotenti: voci al massimo e per quanto restano valide.
+    private static final int DEFAULT_REPLY_CACHE_SIZE = 65536;
+    private static final long DEFAULT_REPLY_CACHE_TTL_MILLIS = 30000;
+    //Richieste che possono restare in coda per ogni worker prima di rallentare la ricezione.
+    private static final int WORKER_QUEUE_PER_THREAD = 64;
+    //Richieste riusabili (vedi PooledRequest) per worker: limitano anche le richieste in volo per file.
+    private static final int REQUESTS_PER_WORKER = 4;
+    //Datagrammi ricevuti al più per file a ogni risveglio del Selector del gruppo.
+    private static final int RECEIVE_BATCH = 64;
+    //Le risposte della via veloce (OK, fuori dal file) ci stanno sempre; le altre usano sendReply.
+    private static final int REPLY_BUFFER_SIZE = 64;
+    //Risposta "OK" già codificata (senza i 2 byte di lunghezza di writeUTF).
+    private static final byte[] REPLY_OK = "OK".getBytes(StandardCharsets.US_ASCII);
+    //Numero di strisce in cui sono divise le righe per i lock: la riga r usa la striscia r % LINE_LOCK_STRIPES.
+    private static final int LINE_LOCK_STRIPES = 256;
+    //Esito interno di applyPermutationLocked: serve la riscrittura del file (confrontato per identità).
+    private static final String NEEDS_REWRITE = new String("riscrittura necessaria");
+    //Esito di applyPermutationLocked e deferSwaps quando il file è stato reindicizzato (modifica esterna)
+    //dopo il controllo delle righe: non è stato applicato nulla (confrontato per identità dal compattatore).
+    private static final String FILE_CHANGED = new String("Il file è stato modificato da un altro processo: swap non applicato");
+
+    //Dimensione massima di ciascuna mappatura: un MappedByteBuffer è indicizzato con un int.
+    private static final int MAP_CHUNK_SIZE = 1 << 30;
+
+    //Snapshot dell'indice (file "<nome>.index" accanto a quello servito): intestazione, offset come varint
+    //delle differenze e CRC32C di tutto quanto precede.
+    private static final int INDEX_MAGIC = 0x52534958; //"RSIX"
+    private static final int INDEX_VERSION = 1;
+    //Checksum a campione: INDEX_SAMPLES blocchi da INDEX_SAMPLE_SIZE byte distribuiti su tutto il file.
+    private static final int INDEX_SAMPLES = 64;
+    private static final int INDEX_SAMPLE_SIZE = 4096;
+
+    //Blocchi di byte in cui viene diviso il file per indicizzarlo in parallelo.
+    private static final int INDEX_CHUNK_SIZE = 1 << 22;
+    //Buffer diretto con cui ogni blocco legge dal canale (modalità non mappata).
+    private static final int INDEX_READ_SIZE = 1 << 16;
+
+    //Costruisce l'indice degli offset di inizio riga di un intervallo di byte del file che inizia a start.
+    //Come BufferedReader.readLine() considera terminatori di riga "\n", "\r" e "\r\n".
+    //Gli intervalli grandi vengono divisi in blocchi indicizzati in parallelo (IndexTask) e poi uniti con merge.
+    private static class LineIndexBuilder {
+        //Costanti per cercare '\n' e '\r' 8 byte alla volta (byte nullo in word ^ LF o word ^ CR).
+        private static final long ONES = 0x0101010101010101L;
+        private static final long HIGHS = 0x8080808080808080L;
+        private static final long LF = ONES * '\n';
+        private static final long CR = ONES * '\r';
+
+        private final long start;
+        private long[] offsets;
+        private int count = 0;
+        private long pos;
+        private boolean prevCR = false;
+        //Il primo byte è '\n': se il blocco precedente finisce con '\r' è la seconda metà di un "\r\n".
+        private boolean startsWithLF = false;
+
+        public LineIndexBuilder(long start, int expectedLines) {
+            this.start = start;
+            this.pos = start;
+            this.offsets = new long[Math.max(16, expectedLines + 1)];
+            this.offsets[0] = start;
+        }
+
+        public void feed(byte c) {
+            if (c == '\n' && prevCR) {
+                //"\r\n": la riga è già stata chiusa dal '\r', sposto solo l'inizio della successiva.
+                offsets[count] = ++pos;
+                prevCR = false;
+                return;
+            }
+
+            if (c == '\n' && pos == start) {
+                startsWithLF = true;
+            }
+
+            pos++;
+            prevCR = false;
+
+            if (c == '\n' || c == '\r') {
+                count++;
+                if (count == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                offsets[count] = pos;
+                prevCR = c == '\r';
+            }
+        }
+
+        //Byte [from, to) del buffer, con letture assolute (il buffer può essere condiviso tra thread).
+        //Le parole di 8 byte senza terminatori vengono saltate in blocco.
+        public void feed(ByteBuffer chunk, int from, int to) {
+            int i = from;
+
+            for (; i + Long.BYTES <= to; i += Long.BYTES) {
+                long word = chunk.getLong(i);
+                long lf = word ^ LF;
+                long cr = word ^ CR;
+
+                if (((((lf - ONES) & ~lf) | ((cr - ONES) & ~cr)) & HIGHS) == 0) {
+                    pos += Long.BYTES;
+                    prevCR = false;
+                    continue;
+                }
+
+                for (int j = 0; j < Long.BYTES; j++) {
+                    feed(chunk.get(i + j));
+                }
+            }
+
+            for (; i < to; i++) {
+                feed(chunk.get(i));
+            }
+        }
+
+        public int getCount() {
+            //Ultima riga senza terminatore.
+            return offsets[count] < pos ? count + 1 : count;
+        }
+
+        public long[] getOffsets() {
+            long[] result = Arrays.copyOf(offsets, getCount() + 1);
+            result[result.length - 1] = pos;
+            return result;
+        }
+
+        //Unisce gli indici di blocchi consecutivi (il primo inizia a un inizio riga) in quello dell'intero intervallo.
+        public static LineIndexBuilder merge(LineIndexBuilder[] parts) {
+            if (parts.length == 1) {
+                return parts[0];
+            }
+
+            long total = 0;
+            for (LineIndexBuilder part : parts) {
+                total += part.count;
+            }
+
+            if (total + 2 > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Troppe righe: " + total);
+            }
+
+            LineIndexBuilder merged = new LineIndexBuilder(parts[0].start, (int) total + 1);
+
+            for (LineIndexBuilder part : parts) {
+                int first = 1;
+
+                if (merged.prevCR && part.startsWithLF) {
+                    //"\r\n" a cavallo dei blocchi: il '\n' non chiude una riga, sposta solo l'inizio della successiva.
+                    merged.offsets[merged.count] = part.offsets[1];
+                    first = 2;
+                }
+
+                int length = part.count - first + 1;
+                System.arraycopy(part.offsets, first, merged.offsets, merged.count + 1, length);
+                merged.count += length;
+                merged.pos = part.pos;
+                merged.prevCR = part.prevCR;
+            }
+
+            return merged;
+        }
+    }
+
+    //Indicizza i blocchi [lo, hi) dell'intervallo [from, to): divide a metà finchè resta un solo blocco,
+    //che scrive il suo indice in parts[lo]. Legge dalle mappature se ci sono, altrimenti dal canale.
+    private static class IndexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer[] mapped;
+        private final long from;
+        private final long to;
+        private final LineIndexBuilder[] parts;
+        private final int lo;
+        private final int hi;
+
+        IndexTask(FileChannel channel, MappedByteBuffer[] mapped, long from, long to, LineIndexBuilder[] parts, int lo, int hi) {
+            this.channel = channel;
+            this.mapped = mapped;
+            this.from = from;
+            this.to = to;
+            this.parts = parts;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new IndexTask(channel, mapped, from, to, parts, lo, mid), new IndexTask(channel, mapped, from, to, parts, mid, hi));
+                return;
+            }
+
+            long start = from + (long) lo * INDEX_CHUNK_SIZE;
+            long end = Math.min(to, start + INDEX_CHUNK_SIZE);
+            //Stima iniziale: righe da 64 byte.
+            LineIndexBuilder builder = new LineIndexBuilder(start, (int) ((end - start) >>> 6));
+
+            if (mapped != null) {
+                //Un blocco può attraversare due mappature se l'intervallo non parte da un multiplo del blocco.
+                for (long position = start; position < end; ) {
+                    int offset = (int) (position % MAP_CHUNK_SIZE);
+                    int length = (int) Math.min(end - position, MAP_CHUNK_SIZE - offset);
+                    builder.feed(mapped[(int) (position / MAP_CHUNK_SIZE)], offset, offset + length);
+                    position += length;
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(INDEX_READ_SIZE);
+
+                try {
+                    for (long position = start; position < end; ) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(INDEX_READ_SIZE, end - position));
+
+                        int read = channel.read(buffer, position);
+                        if (read < 0) {
+                            throw new EOFException("File accorciato durante l'indicizzazione");
+                        }
+
+                        builder.feed(buffer, 0, read);
+                        position += read;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            parts[lo] = builder;
+        }
+    }
+
+    //Indice delle righe dei byte [from, to) del file, con from inizio di una riga. Un intervallo di più blocchi
+    //viene indicizzato in parallelo sul pool fork-join comune, uno solo direttamente su questo thread.
+    private static LineIndexBuilder indexRange(FileChannel channel, MappedByteBuffer[] mapped, long from, long to) throws IOException {
+        int chunks = (int) Math.max(1, (to - from + INDEX_CHUNK_SIZE - 1) / INDEX_CHUNK_SIZE);
+        LineIndexBuilder[] parts = new LineIndexBuilder[chunks];
+        IndexTask task = new IndexTask(channel, mapped, from, to, parts, 0, chunks);
+
+        try {
+            if (chunks == 1) {
+                task.invoke();
+            } else {
+                ForkJoinPool.commonPool().invoke(task);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return LineIndexBuilder.merge(parts);
+    }
+
+    //Risposte recenti alle richieste idempotenti, per chiave (clientId, requestId): a una ritrasmissione
+    //si rimanda la risposta già data senza rieseguire lo swap. Al massimo maxEntries voci, ciascuna valida
+    //per ttl dalla ricezione della richiesta; l'ordine di inserimento è anche quello di scadenza,
+    //quindi le voci scadute si tolgono dalla testa.
+    static final class ReplyCache {
+
+        //Risposta di una richiesta ancora in esecuzione (confrontata per identità).
+        static final byte[] IN_PROGRESS = new byte[0];
+
+        private static final class Key {
+            private final long clientId;
+            private final int requestId;
+
+            private Key(long clientId, int requestId) {
+                this.clientId = clientId;
+                this.requestId = requestId;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) {
+                    return false;
+                }
+                Key other = (Key) o;
+                return clientId == other.clientId && requestId == other.requestId;
+            }
+
+            @Override
+            public int hashCode() {
+                return Long.hashCode(clientId) * 31 + requestId;
+            }
+        }
+
+        private static final class Entry {
+            private final long receivedNanos;
+            private byte[] reply = IN_PROGRESS;
+
+            private Entry(long receivedNanos) {
+                this.receivedNanos = receivedNanos;
+            }
+        }
+
+        private final int maxEntries;
+        private final long ttlNanos;
+
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        ReplyCache(int maxEntries, long ttlMillis) {
+            this.maxEntries = maxEntries;
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+
+        //null se la richiesta è nuova (e da ora risulta in esecuzione), altrimenti la risposta già data
+        //o IN_PROGRESS.
+        synchronized byte[] begin(long clientId, int requestId) {
+            long now = System.nanoTime();
+            Iterator<Entry> oldest = entries.values().iterator();
+
+            while (oldest.hasNext() && now - oldest.next().receivedNanos >= ttlNanos) {
+                oldest.remove();
+            }
+
+            Key key = new Key(clientId, requestId);
+            Entry entry = entries.get(key);
+
+            if (entry != null) {
+                return entry.reply;
+            }
+
+            entries.put(key, new Entry(now));
+            return null;
+        }
+
+        //Se la voce è già stata scartata (scaduta o cache piena) la risposta non viene ricordata.
+        synchronized void complete(long clientId, int requestId, byte[] reply) {
+            Entry entry = entries.get(new Key(clientId, requestId));
+
+            if (entry != null) {
+                entry.reply = reply;
+            }
+        }
+
+        //Toglie la voce se è ancora in esecuzione (la gestione della richiesta è fallita).
+        synchronized void abort(long clientId, int requestId) {
+            Key key = new Key(clientId, requestId);
+            Entry entry = entries.get(key);
+
+            if (entry != null && entry.reply == IN_PROGRESS) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    //Thread condivisi con gli altri file serviti dallo stesso processo (vedi ServerGroup): lettura delle socket,
+    //compattazioni e osservazione delle directory. Il RowSwapServer è lo stato del file servito.
+    private ServerGroup group = null;
+    //true da quando la socket è nel Selector del gruppo fino all'arresto.
+    private volatile boolean serving = false;
+    private volatile boolean closed = false;
+    private volatile boolean fullyClosed = false;
+    //Aperto alla fine dell'arresto (o subito, se il server non parte): join() lo aspetta.
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     private final DatagramSocket socket;
+    //Canale della socket: la via veloce risponde con channel.send, che a differenza di DatagramSocket.send
+    //non crea un indirizzo a ogni invio.
+    private final DatagramChannel channel;
     private final DatagramPacket packet;
-    private final byte[] buf = new byte[256];
+    //Dimensione massima del payload di un datagramma UDP: serve per gli swap multipli.
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final byte[] buf = new byte[MAX_DATAGRAM_SIZE];
 
     private final InetAddress addressDS;
     private final int portDS;
@@ -85,13 +500,120 @@ public class RowSwapServer implements Runnable {
     private final String filename;
     private final Path filePath;
 
-    private boolean isFileValid = false;
-    private int fileLineCount = -1;
+    private volatile boolean isFileValid = false;
+    //volatile: i controlli sulle righe si fanno prima di prendere i lock e la reindicizzazione lo può cambiare.
+    private volatile int fileLineCount = -1;
+
+    //Indice degli offset (in byte) di inizio riga: lineOffsets[i] è l'inizio della riga i,
+    //lineOffsets[fileLineCount] è la dimensione del file. Mi permette di posizionarmi
+    //direttamente sulle righe da scambiare senza rileggere il file dall'inizio.
+    private long[] lineOffsets = null;
+
+    //Canale sul file servito, tenuto aperto tra una richiesta e l'altra (riaperto dopo ogni Files.move).
+    private FileChannel dataChannel = null;
+
+    //Snapshot dell'indice: al riavvio, se dimensione, mtime, identità del file (inode) e checksum a campione
+    //coincidono, countLines lo riusa senza riscandire il file. Viene scritto all'avvio del server (se
+    //l'indice è stato ricostruito) e alla chiusura.
+    private final Path indexPath;
+    private boolean indexSnapshotEnabled = true;
+    private boolean indexFromSnapshot = false;
+
+    //Modifiche esterne (watchMode): il thread del gruppo (vedi ServerGroup) osserva la directory del file e, a swap
+    //fermi (lock in scrittura sul file), reindicizza solo la coda se il file è stato allungato, tutto il file
+    //altrimenti. Le scritture del server stesso si riconoscono dallo stato registrato dopo ogni riscrittura
+    //(identità del file, dimensione, mtime) o, per lo mtime, da uno scambio sul posto avvenuto nel frattempo.
+    private boolean watchMode = false;
+    private volatile String knownFileKey = null;
+    private volatile long knownSize = -1;
+    private volatile long knownModified = 0;
+    private volatile boolean ownInPlaceWrites = false;
+    //Incrementato a ogni reindicizzazione completa: la permutazione presa prima dal compattatore non vale più.
+    private int indexGeneration = 0;
+
+    //Swap differiti: lo swap scambia due slot della permutazione logica (riga logica --> riga fisica)
+    //e il compattatore in background la materializza nel file con un'unica riscrittura, quando gli swap
+    //in attesa sono commitSwaps o il più vecchio ha commitMillis ms. Con il journal lo swap viene confermato
+    //appena è scritto (e forzato) sul journal, che al riavvio viene riapplicato; senza (lazyMode) gli swap
+    //non ancora materializzati si perdono in caso di crash.
+    //Con il journal la compattazione delle voci fino al numero di sequenza upTo scrive prima un checkpoint
+    //(durevole) con quello che cambierà nel file, poi il file (forzato), e solo dopo riscrive il journal senza
+    //quelle voci. Al riavvio un checkpoint oltre la prima voce del journal viene ripetuto (riscrivere gli stessi
+    //byte, o rinominare il temporaneo se c'è ancora, è idempotente) e le voci che copre vengono saltate.
+    private boolean lazyMode = false;
+    private boolean journalMode = false;
+    private long commitMillis = DEFAULT_COMMIT_MILLIS;
+    private int commitSwaps = DEFAULT_COMMIT_SWAPS;
+    private final Path journalPath;
+    private final Path checkpointPath;
+    //Temporaneo delle riscritture (sempre lo stesso, sotto il lock in scrittura sul file): uno rimasto da un crash
+    //lo rinomina recoverCheckpoint se un checkpoint lo riferisce, altrimenti initDeferredMode lo cancella.
+    private final Path rewritePath;
+    private FileChannel journalChannel = null;
+    //Numero di sequenza della prima voce del journal: quelle precedenti sono già nel file.
+    private long journalBase = 0;
+    //Compattazione programmata sullo scheduler del gruppo (null se non ce n'è una), con permutationLock:
+    //quando scade il più vecchio swap in attesa o, raggiunti commitSwaps, subito.
+    private ScheduledThreadPoolExecutor compactor = null;
+    private ScheduledFuture<?> scheduledCompaction = null;
+    private final Runnable compactionTask = this::runCompaction;
+    //Una compattazione alla volta (programmata o finale).
+    private final Object compactionLock = new Object();
+    private final Object permutationLock = new Object();
+    private IntBuffer permutation = null;
+    private BitSet dirtyLines = null;
+    //Swap non ancora materializzati (con il journal sono anche le voci presenti nel journal).
+    private int pendingSwaps = 0;
+    private long oldestPendingMillis = 0;
+    //Group commit del journal: ogni swap accoda le sue voci in commitBuffer (sotto permutationLock) e aspetta.
+    //Il primo che trova il commit libero diventa il committer: prende tutte le voci accodate dall'ultima force,
+    //le scrive in fondo al journal con un'unica force (fuori da permutationLock, sotto journalLock), le compone
+    //nella permutazione e sveglia chi attende. Gli swap sono confermati solo dopo quella force.
+    //I numeri appendedSeq/committedSeq contano le voci dall'avvio; la fine del journal è tenuta in journalEnd.
+    private ByteBuffer commitBuffer = ByteBuffer.allocate(JOURNAL_ENTRY_SIZE * 64);
+    //Il buffer dell'ultimo commit, riusato per il prossimo.
+    private ByteBuffer spareCommitBuffer = ByteBuffer.allocate(JOURNAL_ENTRY_SIZE * 64);
+    private long appendedSeq = 0;
+    private long committedSeq = 0;
+    private boolean committing = false;
+    //Una reindicizzazione completa aspetta che il commit si svuoti: intanto non si accodano voci.
+    private boolean commitDraining = false;
+    //Errore di scrittura sul journal: dopo una force fallita lo stato del journal non è noto, il server si ferma.
+    private String journalError = null;
+    private final Object journalLock = new Object();
+    private long journalEnd = 0;
+
+    //Thread che eseguono le richieste (0: tutto sul thread che riceve).
+    private int workers = DEFAULT_WORKERS;
+    //Gli scambi sul posto prendono il lock in lettura più le strisce delle righe coinvolte;
+    //le riscritture, che cambiano file e indice, quello in scrittura.
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] lineLocks = new ReentrantLock[LINE_LOCK_STRIPES];
+    //Worker condivisi con gli altri file serviti dallo stesso processo (null: il server crea i propri).
+    private ExecutorService sharedExecutor = null;
+    //Richieste di questo file ancora in mano ai worker (più il thread che riceve).
+    private final Phaser inFlight = new Phaser(1);
+    //Executor usato da start() (null: le richieste le esegue il thread che riceve) e pool delle richieste.
+    private ExecutorService executor = null;
+    private ArrayBlockingQueue<PooledRequest> freeRequests = null;
+    //Richiesta presa dal pool ma non usata (nessun datagramma pronto): la riusa la ricezione successiva.
+    private PooledRequest spareRequest = null;
+
+    //Modalità mappata in memoria: il file è mappato a blocchi da MAP_CHUNK_SIZE byte.
+    private boolean mappedMode = false;
+    private MappedByteBuffer[] mappedChunks = null;
 
     private boolean isRegistered = false;
     private int discoveryResult = -1;
 
-    private final Random rnd = new Random();
+    //null se disattivata (setReplyCache con 0 voci).
+    private ReplyCache replyCache = new ReplyCache(DEFAULT_REPLY_CACHE_SIZE, DEFAULT_REPLY_CACHE_TTL_MILLIS);
+    private int replyCacheSize = DEFAULT_REPLY_CACHE_SIZE;
+    private long replyCacheTtlMillis = DEFAULT_REPLY_CACHE_TTL_MILLIS;
+
+    //Contatori e tempi per fase; pubblicati via JMX finchè il server è in esecuzione.
+    private final RowSwapServerMetrics metrics = new RowSwapServerMetrics();
+    private ObjectName metricsName = null;
 
     public RowSwapServer(InetAddress addressDS, int portDS, int portRS, String filename) throws SocketException, UnknownHostException {
         this(addressDS, portDS, InetAddress.getLocalHost(), portRS, filename);
@@ -104,10 +626,27 @@ public class RowSwapServer implements Runnable {
         this.portRS = portRS;
         this.filename = filename;
 
-        this.myThread = new Thread(this);
-        this.socket = new DatagramSocket(portRS);
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.bind(new InetSocketAddress(portRS));
+        } catch (IOException e) {
+            SocketException ex = new SocketException("Impossibile aprire la porta " + portRS);
+            ex.initCause(e);
+            throw ex;
+        }
+
+        this.socket = channel.socket();
+
+        for (int i = 0; i < lineLocks.length; i++) {
+            lineLocks[i] = new ReentrantLock();
+        }
+
         this.packet = new DatagramPacket(buf, 0, buf.length);
         this.filePath = Path.of(new File(filename).toURI());
+        this.journalPath = filePath.resolveSibling(filePath.getFileName() + ".journal");
+        this.checkpointPath = filePath.resolveSibling(filePath.getFileName() + ".checkpoint");
+        this.indexPath = filePath.resolveSibling(filePath.getFileName() + ".index");
+        this.rewritePath = filePath.resolveSibling(filePath.getFileName() + ".rewrite.tmp");
 
         //Devo impostare questa opzione, in modo che lo script esterno riesca a riavviare il server.
         this.socket.setReuseAddress(true);
@@ -133,14 +672,22 @@ public class RowSwapServer implements Runnable {
     }
 
     public void countLines() {
-        //Conto le righe.
+        //Conto le righe e costruisco l'indice degli offset di inizio riga.
         if (isFileValid) {
-            try (BufferedReader bufferedReader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
-                int tmp = 0;
+            try {
+                openDataChannel();
+
+                //File invariato dall'ultimo snapshot: riuso l'indice salvato.
+                indexFromSnapshot = indexSnapshotEnabled && loadIndexSnapshot();
+
+                if (!indexFromSnapshot) {
+                    //Conto i terminatori sui byte grezzi (dalla mappatura se c'è), a blocchi in parallelo.
+                    LineIndexBuilder builder = indexRange(dataChannel, mappedChunks, 0, dataChannel.size());
 
-                while (bufferedReader.readLine() != null) tmp++;
-                //setto all'interno della struttura il numero di righe per ciascun file
-                fileLineCount = tmp;
+                    //setto all'interno della struttura il numero di righe per ciascun file
+                    fileLineCount = builder.getCount();
+                    lineOffsets = builder.getOffsets();
+                }
 
             } catch (IOException e) {
                 System.err.println("Errore nell'aprire il file: " + e.getMessage());
@@ -151,16 +698,285 @@ public class RowSwapServer implements Runnable {
         }
     }
 
+    //Checksum CRC32C di INDEX_SAMPLES blocchi distribuiti sul file (primo e ultimo compresi): economico anche
+    //sui file enormi, si accorge delle modifiche che non cambiano dimensione e mtime nella maggior parte dei casi.
+    private long sampleChecksum(long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer sample = ByteBuffer.allocate(INDEX_SAMPLE_SIZE);
+        long span = Math.max(0, size - INDEX_SAMPLE_SIZE);
+
+        for (int i = 0; i < INDEX_SAMPLES; i++) {
+            long position = span * i / (INDEX_SAMPLES - 1);
+
+            sample.clear();
+            while (sample.hasRemaining() && dataChannel.read(sample, position + sample.position()) > 0) {
+                //leggo il blocco intero
+            }
+
+            sample.flip();
+            crc.update(sample);
+        }
+
+        return crc.getValue();
+    }
+
+    //Identità del file sul filesystem: cambia con Files.move anche se dimensione e mtime coincidono.
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key == null ? "" : key.toString();
+    }
+
+    //Carica lo snapshot dell'indice se corrisponde al file. Ritorna false (e il file va scandito) se manca,
+    //è danneggiato o il file è cambiato.
+    private boolean loadIndexSnapshot() {
+        if (!Files.exists(indexPath)) {
+            return false;
+        }
+
+        CRC32C crc = new CRC32C();
+
+        try (InputStream in = Files.newInputStream(indexPath);
+             CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in, 1 << 16), crc);
+             DataInputStream data = new DataInputStream(checked)) {
+            if (data.readInt() != INDEX_MAGIC || data.readInt() != INDEX_VERSION) {
+                return false;
+            }
+
+            BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            long size = data.readLong();
+            long mtime = data.readLong();
+            String key = data.readUTF();
+
+            if (size != dataChannel.size() || size != attributes.size()
+                    || mtime != attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) || !key.equals(fileKey(attributes))) {
+                return false;
+            }
+
+            long checksum = data.readLong();
+            int count = data.readInt();
+
+            if (count < 0 || checksum != sampleChecksum(size)) {
+                return false;
+            }
+
+            long[] offsets = new long[count + 1];
+
+            for (int i = 1; i <= count; i++) {
+                offsets[i] = offsets[i - 1] + readVarLong(data);
+            }
+
+            long expected = crc.getValue();
+
+            if (offsets[count] != size || data.readLong() != expected) {
+                System.err.println("Snapshot dell'indice danneggiato: " + indexPath);
+                return false;
+            }
+
+            fileLineCount = count;
+            lineOffsets = offsets;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Impossibile leggere lo snapshot dell'indice: " + e.getMessage());
+            return false;
+        }
+    }
+
+    //Salva lo snapshot dell'indice (file temporaneo + rinomina, così non resta mai scritto a metà).
+    //Prende il file in lettura: durante la scrittura non ci sono riscritture che cambiano gli offset.
+    private void writeIndexSnapshot() {
+        if (!indexSnapshotEnabled || !isFileValid || lineOffsets == null) {
+            return;
+        }
+
+        Path tmpPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+
+        fileLock.readLock().lock();
+
+        try {
+            try (OutputStream out = Files.newOutputStream(tmpPath);
+                 CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(out, 1 << 16), crc);
+                 DataOutputStream data = new DataOutputStream(checked)) {
+                BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+                long size = dataChannel.size();
+
+                data.writeInt(INDEX_MAGIC);
+                data.writeInt(INDEX_VERSION);
+                data.writeLong(size);
+                data.writeLong(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+                data.writeUTF(fileKey(attributes));
+                data.writeLong(sampleChecksum(size));
+                data.writeInt(fileLineCount);
+
+                for (int i = 1; i <= fileLineCount; i++) {
+                    writeVarLong(data, lineOffsets[i] - lineOffsets[i - 1]);
+                }
+
+                data.flush();
+                data.writeLong(crc.getValue());
+            }
+
+            Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Impossibile salvare lo snapshot dell'indice: " + e.getMessage());
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream data, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            data.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        data.write((int) value);
+    }
+
+    private static long readVarLong(DataInputStream data) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Varint troppo lungo");
+    }
+
+    //Apre (o riapre, dopo una Files.move) il canale sul file e, in modalità mappata, rifà le mappature.
+    private void openDataChannel() throws IOException {
+        if (dataChannel != null) {
+            dataChannel.close();
+        }
+
+        dataChannel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mappedChunks = null;
+
+        if (mappedMode) {
+            long size = dataChannel.size();
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + MAP_CHUNK_SIZE - 1) / MAP_CHUNK_SIZE)];
+
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i * MAP_CHUNK_SIZE;
+                chunks[i] = dataChannel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(MAP_CHUNK_SIZE, size - start));
+            }
+
+            mappedChunks = chunks;
+        }
+    }
+
+    //Legge i byte della riga (terminatore compreso) nel buffer slot, usando l'indice degli offset.
+    private void readLineBytes(int riga, SwapBuffers buffers, int slot) throws IOException {
+        long start = lineOffsets[riga];
+        int length = (int) (lineOffsets[riga + 1] - start);
+        ByteBuffer buffer = buffers.line(slot, length);
+
+        if (mappedChunks != null) {
+            copyMapped(start, buffers.raw[slot], length, false);
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            if (dataChannel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Il file è più corto dell'indice delle righe");
+            }
+        }
+    }
+
+    //Sovrascrive il contenuto di una riga (stessa lunghezza) nella sua posizione con i primi length byte del buffer slot.
+    private void writeLineBytes(long position, SwapBuffers buffers, int slot, int length) throws IOException {
+        if (mappedChunks != null) {
+            copyMapped(position, buffers.raw[slot], length, true);
+        } else {
+            ByteBuffer buffer = buffers.views[slot];
+            buffer.clear().limit(length);
+            writeFully(dataChannel, buffer, position);
+        }
+    }
+
+    //Copia length byte tra la mappatura (a partire da position) e l'array, attraversando i confini tra i blocchi.
+    private void copyMapped(long position, byte[] bytes, int length, boolean toMapping) throws IOException {
+        int done = 0;
+
+        while (done < length) {
+            int chunkIndex = (int) (position / MAP_CHUNK_SIZE);
+            if (chunkIndex >= mappedChunks.length) {
+                throw new EOFException("Il file è più corto dell'indice delle righe");
+            }
+
+            MappedByteBuffer chunk = mappedChunks[chunkIndex];
+            int index = (int) (position % MAP_CHUNK_SIZE);
+            int n = Math.min(length - done, chunk.limit() - index);
+
+            if (toMapping) {
+                chunk.put(index, bytes, done, n);
+            } else {
+                chunk.get(index, bytes, done, n);
+            }
+
+            done += n;
+            position += n;
+        }
+    }
+
+    //Scrive tutto il buffer a partire dalla posizione indicata.
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    //Scrive tutto il buffer nella posizione corrente del canale.
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    //Copia count byte da source (a partire da position) in coda a target, lasciando fare la copia al kernel.
+    private static void transferFully(FileChannel source, long position, long count, FileChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new EOFException("Il file è più corto dell'indice delle righe");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    //Lunghezza del terminatore ("\n", "\r" o "\r\n") in coda alla riga, 0 se assente.
+    private static int terminatorLength(byte[] raw, int len) {
+        if (len >= 2 && raw[len - 2] == '\r' && raw[len - 1] == '\n') return 2;
+        if (len >= 1 && (raw[len - 1] == '\n' || raw[len - 1] == '\r')) return 1;
+        return 0;
+    }
+
+    //Senza setGroup() il server usa un gruppo tutto suo.
     public void start() {
-        myThread.start();
+        if (group == null) {
+            group = new ServerGroup();
+        }
+
+        //Devo essere registrato per continuare.
+        if (!isRegistered() || closed) {
+            stopped.countDown();
+            return;
+        }
+
+        startServing();
+        group.add(this);
     }
 
     public void join() throws InterruptedException {
-        myThread.join();
+        stopped.await();
     }
 
     public void join(long millis) throws InterruptedException {
-        myThread.join(millis);
+        stopped.await(millis, TimeUnit.MILLISECONDS);
     }
 
     public boolean isFullyClosed() {
@@ -173,6 +989,17 @@ public class RowSwapServer implements Runnable {
 
     public void close(){
         closed = true;
+
+        if (serving) {
+            //L'arresto lo fa il gruppo: sveglio il Selector.
+            group.wakeup();
+        } else if (!fullyClosed) {
+            //Il server non è mai partito: rilascio qui la socket e i file.
+            fullyClosed = true;
+            socket.close();
+            closeFiles();
+            stopped.countDown();
+        }
     }
 
     public InetAddress getAddressDS() {
@@ -199,293 +1026,2609 @@ public class RowSwapServer implements Runnable {
         return isFileValid;
     }
 
-    public int getFileLineCount() {
-        return fileLineCount;
+    public boolean isMappedMode() {
+        return mappedMode;
     }
 
-    public boolean isRegistered() {
-        return isRegistered;
+    //Da impostare prima di countLines().
+    public void setMappedMode(boolean mappedMode) {
+        this.mappedMode = mappedMode;
     }
 
-    public InetAddress getAddressRS() {
-        return addressRS;
+    public boolean isJournalMode() {
+        return journalMode;
     }
 
-    public int getDiscoveryResult() {
-        return discoveryResult;
+    public boolean isLazyMode() {
+        return lazyMode;
     }
 
-    public String getDiscoveryResultString() {
-        return getResultString(getDiscoveryResult());
+    public boolean isDeferredMode() {
+        return lazyMode || journalMode;
     }
 
-    private String swap(int riga1, int riga2) {
+    //Da impostare prima di initDeferredMode().
+    public void setDeferredMode(boolean lazyMode, boolean journalMode, long commitMillis, int commitSwaps) {
+        if (commitMillis <= 0 || commitSwaps <= 0) {
+            throw new IllegalArgumentException("Soglie di compattazione non valide");
+        }
 
-        final String esitoOK = "OK";
+        this.lazyMode = lazyMode;
+        this.journalMode = journalMode;
+        this.commitMillis = commitMillis;
+        this.commitSwaps = commitSwaps;
+    }
 
-        //Giustamente il controllo viene fatto a livello client...
-        //In questo caso isolato può anche andare, ma in un contesto più generale
-        //dove il client viene implementato da terze parti, non sappiamo se hanno fatto il controllo.
-        //if(riga1 == riga2) return esitoOK;
+    public long getCommitMillis() {
+        return commitMillis;
+    }
 
-        //Controllo sulle righe (se superano la dimensione del file su cui insisto non ci provo nemmeno ritorno stringa errore
-        if (riga1 > fileLineCount || riga2 > fileLineCount) {
-            return "Riga 1 o Riga 2 supera la dimensione del file. (" + fileLineCount + ")";
-        }
+    public int getCommitSwaps() {
+        return commitSwaps;
+    }
+
+    public Path getIndexPath() {
+        return indexPath;
+    }
+
+    public boolean isIndexSnapshotEnabled() {
+        return indexSnapshotEnabled;
+    }
 
-        //Cerco la riga più in basso:
-        //Nel ciclo mi fermerò lì.
-        int maxLine = riga1 > riga2 ? riga1 : riga2;
+    //Da impostare prima di countLines().
+    public void setIndexSnapshotEnabled(boolean indexSnapshotEnabled) {
+        this.indexSnapshotEnabled = indexSnapshotEnabled;
+    }
 
-        //Leggo tutto il file e mi salvo le righe da swappare
-        String inDaSwap1 = null;
-        String inDaSwap2 = null;
+    //true se l'ultimo countLines() ha riusato lo snapshot invece di scandire il file.
+    public boolean isIndexFromSnapshot() {
+        return indexFromSnapshot;
+    }
 
-        try (BufferedReader bufferedReader = Files.newBufferedReader(filePath)) {
-            //Leggo le righe.
-            for (int i = 0; i < fileLineCount; i++) {
-                String tmpLine = bufferedReader.readLine();
+    public int getReplyCacheSize() {
+        return replyCacheSize;
+    }
 
-                if (i == riga1) inDaSwap1 = tmpLine;
-                if (i == riga2) inDaSwap2 = tmpLine;
-                if (i == maxLine) break;
+    public long getReplyCacheTtlMillis() {
+        return replyCacheTtlMillis;
+    }
 
-            }
-        } catch (IOException e) {
-            String err = "Errore nell'aprire il file: " + e.getMessage();
-            System.err.println(err);
-            return err;
-            //non esco ma rispondo con una stringa che rappresenta il problema
+    //Da impostare prima di start(); maxEntries 0 disattiva la cache (le ritrasmissioni vengono rieseguite).
+    public void setReplyCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Parametri della cache delle risposte non validi");
         }
 
-        //Buffer temporaneo del file temporaneo.
-        //Path tmpPath = Paths.get(new File(getId() + ".tmp").toURI());
-        //Disponibile da Java 11
-        Path tmpPath = Path.of(new File(rnd.nextInt() + ".tmp").toURI());
+        this.replyCacheSize = maxEntries;
+        this.replyCacheTtlMillis = ttlMillis;
+        this.replyCache = maxEntries > 0 ? new ReplyCache(maxEntries, ttlMillis) : null;
+    }
 
-        try (BufferedWriter bufferedWriter = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+    public boolean isWatchMode() {
+        return watchMode;
+    }
 
-            try (BufferedReader bufferedReader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
-                //Leggo le righe.
-                for (int i = 0; i < fileLineCount; i++) {
-                    String tmpLine = bufferedReader.readLine();
+    //Da impostare prima di start().
+    public void setWatchMode(boolean watchMode) {
+        this.watchMode = watchMode;
+    }
 
-                    if (i == riga1) { //se la riga letta è quella di indice riga1 allora ci scrivo la seconda
-                        bufferedWriter.write(inDaSwap2);
-                    } else if (i == riga2) { //se la riga letta è quella di indice riga2 allora ci scrivo la prima
-                        bufferedWriter.write(inDaSwap1);
-                    } else {
-                        bufferedWriter.write(tmpLine);
+    public Path getJournalPath() {
+        return journalPath;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    //Da impostare prima di start().
+    public void setWorkers(int workers) {
+        if (workers < 0) {
+            throw new IllegalArgumentException("Numero di worker non valido");
+        }
+
+        this.workers = workers;
+    }
+
+    //Da impostare prima di start(); l'executor non viene chiuso dal server.
+    public void setExecutor(ExecutorService executor) {
+        this.sharedExecutor = executor;
+    }
+
+    //Da impostare prima di start(): i server dello stesso gruppo ne condividono i thread.
+    void setGroup(ServerGroup group) {
+        this.group = group;
+    }
+
+    public RowSwapServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getFileLineCount() {
+        return fileLineCount;
+    }
+
+    //Thread che riceve le richieste (con workers == 0 le esegue anche), condiviso dal gruppo.
+    Thread getThread() {
+        return group == null ? null : group.readerThread;
+    }
+
+    //Permutazione logica allocata fuori dallo heap (solo con gli swap differiti).
+    boolean isPermutationOffHeap() {
+        synchronized (permutationLock) {
+            return permutation != null && permutation.isDirect();
+        }
+    }
+
+    public boolean isRegistered() {
+        return isRegistered;
+    }
+
+    public InetAddress getAddressRS() {
+        return addressRS;
+    }
+
+    public int getDiscoveryResult() {
+        return discoveryResult;
+    }
+
+    public String getDiscoveryResultString() {
+        return getResultString(getDiscoveryResult());
+    }
+
+    //Visibile nel package per i benchmark, che lo chiamano direttamente senza passare dalla rete.
+    String swap(int riga1, int riga2) {
+
+        final String esitoOK = "OK";
+
+        //Giustamente il controllo viene fatto a livello client...
+        //In questo caso isolato può anche andare, ma in un contesto più generale
+        //dove il client viene implementato da terze parti, non sappiamo se hanno fatto il controllo.
+        //if(riga1 == riga2) return esitoOK;
+
+        //Controllo sulle righe (se superano la dimensione del file su cui insisto non ci provo nemmeno ritorno stringa errore
+        if (riga1 < 0 || riga2 < 0 || riga1 >= fileLineCount || riga2 >= fileLineCount) {
+            metrics.outOfRange();
+            return "Riga 1 o Riga 2 supera la dimensione del file. (" + fileLineCount + ")";
+        }
+
+        String err = applySwap(riga1, riga2);
+
+        //ritorno esito in formato di stringa dello swap
+        return err == null ? esitoOK : err;
+    }
+
+    //Scambia due righe già controllate. Ritorna null se va tutto bene, altrimenti il messaggio d'errore.
+    private String applySwap(int riga1, int riga2) {
+        return applySwap(riga1, riga2, new int[2], new int[2], new SwapBuffers(2));
+    }
+
+    //positions e sources (due elementi) e buffers sono d'appoggio: chi li riusa evita di allocare a ogni swap.
+    private String applySwap(int riga1, int riga2, int[] positions, int[] sources, SwapBuffers buffers) {
+        //Stessa riga: non c'è niente da spostare.
+        if (riga1 == riga2) {
+            metrics.swapped(1);
+            return null;
+        }
+
+        RowSwapEvents.Swap event = beginSwapEvent();
+
+        String err;
+
+        if (isDeferredMode()) {
+            //Swap differito: scambio gli slot della permutazione, il file lo aggiornerà il compattatore.
+            positions[0] = riga1;
+            positions[1] = riga2;
+            err = deferSwaps(positions, 1);
+        } else {
+            //Lo swap è la permutazione delle due sole posizioni.
+            positions[0] = Math.min(riga1, riga2);
+            positions[1] = Math.max(riga1, riga2);
+            sources[0] = positions[1];
+            sources[1] = positions[0];
+            err = applyPermutation(positions, sources, -1, -1, buffers);
+        }
+
+        endSwaps(event, riga1, riga2, 1, err);
+        return err;
+    }
+
+    //Evento JFR di uno swap, null se è disabilitato: così gli swap senza registrazione non allocano.
+    private static RowSwapEvents.Swap beginSwapEvent() {
+        if (!RowSwapEvents.SWAP_TYPE.isEnabled()) {
+            return null;
+        }
+
+        RowSwapEvents.Swap event = new RowSwapEvents.Swap();
+        event.begin();
+        return event;
+    }
+
+    //Aggiorna le metriche e, se l'evento JFR è abilitato, lo completa con la (prima) coppia.
+    private void endSwaps(RowSwapEvents.Swap event, int riga1, int riga2, int count, String err) {
+        if (err == null) {
+            metrics.swapped(count);
+        } else {
+            metrics.error();
+        }
+
+        if (event != null && event.shouldCommit()) {
+            event.filename = filename;
+            event.line1 = riga1;
+            event.line2 = riga2;
+            event.pairs = count;
+            event.deferred = isDeferredMode();
+            event.error = err;
+            event.commit();
+        }
+    }
+
+    //Esiti delle singole coppie di uno swap multiplo: un carattere per coppia, nello stesso ordine della richiesta.
+    private static final char BATCH_OK = '+';
+    private static final char BATCH_OUT_OF_RANGE = 'R';
+    private static final char BATCH_MALFORMED = 'M';
+    private static final char BATCH_IO_ERR = 'E';
+
+    //Swap multiplo: richiesta "a,b;c,d;...". Le coppie vengono composte (in ordine) in un'unica permutazione
+    //applicata con una sola passata sul file. Le coppie malformate o fuori dal file vengono saltate.
+    private String swapBatch(String richiesta, long decodeStart) {
+        metrics.batch();
+
+        StringTokenizer pairs = new StringTokenizer(richiesta, ";");
+        StringBuilder esiti = new StringBuilder(pairs.countTokens());
+
+        //Coppie valide, una dopo l'altra: [2*i] e [2*i+1].
+        int[] righe = new int[2 * pairs.countTokens()];
+        int count = 0;
+
+        while (pairs.hasMoreTokens()) {
+            StringTokenizer st = new StringTokenizer(pairs.nextToken(), ",");
+
+            int riga1;
+            int riga2;
+
+            try {
+                riga1 = Integer.parseInt(st.nextToken().trim());
+                riga2 = Integer.parseInt(st.nextToken().trim());
+            } catch (NumberFormatException | NoSuchElementException e) {
+                metrics.malformed();
+                esiti.append(BATCH_MALFORMED);
+                continue;
+            }
+
+            if (riga1 < 0 || riga2 < 0 || riga1 >= fileLineCount || riga2 >= fileLineCount) {
+                metrics.outOfRange();
+                esiti.append(BATCH_OUT_OF_RANGE);
+                continue;
+            }
+
+            righe[2 * count] = riga1;
+            righe[2 * count + 1] = riga2;
+            count++;
+
+            esiti.append(BATCH_OK);
+        }
+
+        metrics.phase(RowSwapServerMetrics.PHASE_DECODE, decodeStart);
+        String err = applySwaps(righe, count);
+
+        if (err != null) {
+            //Non è stato applicato nulla: segnalo l'errore su tutte le coppie valide.
+            for (int i = 0; i < esiti.length(); i++) {
+                if (esiti.charAt(i) == BATCH_OK) esiti.setCharAt(i, BATCH_IO_ERR);
+            }
+        }
+
+        return esiti.toString();
+    }
+
+    //Applica in ordine count coppie già controllate (righe[2*i], righe[2*i+1]) con una sola passata sul file.
+    //Ritorna null se va tutto bene, altrimenti il messaggio d'errore (in tal caso non è stato applicato nulla).
+    private String applySwaps(int[] righe, int count) {
+        RowSwapEvents.Swap event = beginSwapEvent();
+
+        String err;
+
+        if (isDeferredMode()) {
+            err = deferSwaps(righe, count);
+        } else {
+            HashMap<Integer, Integer> permutazione = new HashMap<>();
+
+            for (int i = 0; i < count; i++) {
+                composeSwap(permutazione, righe[2 * i], righe[2 * i + 1]);
+            }
+
+            err = applyPermutation(permutazione);
+        }
+
+        endSwaps(event, count > 0 ? righe[0] : -1, count > 0 ? righe[1] : -1, count, err);
+        return err;
+    }
+
+    //Richiesta in formato binario (vedi Protocol): risponde con un frame con lo stesso opcode e requestId.
+    private void handleBinaryRequest(byte[] data, InetAddress address, int port, long decodeStart) {
+        ByteBuffer request = ByteBuffer.wrap(data);
+        byte opcode = Protocol.getOpcode(request);
+        int requestId = Protocol.getRequestId(request);
+        long clientId = Protocol.getClientId(request);
+        ByteBuffer reply;
+
+        if (replayReply(clientId, requestId, address, port)) {
+            return;
+        }
+
+        //Se la gestione fallisce tolgo la voce in esecuzione, altrimenti le ritrasmissioni verrebbero
+        //scartate fino alla scadenza.
+        try {
+            request.position(Protocol.getHeaderSize(request));
+
+            try {
+                switch (opcode) {
+                    case Protocol.OP_PING:
+                        reply = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+                        Protocol.putHeader(reply, opcode, Protocol.STATUS_OK, requestId);
+                        break;
+                    case Protocol.OP_SWAP:
+                        int riga1 = Protocol.getVarInt(request);
+                        int riga2 = Protocol.getVarInt(request);
+                        metrics.phase(RowSwapServerMetrics.PHASE_DECODE, decodeStart);
+                        reply = binarySwap(riga1, riga2, requestId);
+                        break;
+                    case Protocol.OP_SWAP_BATCH:
+                        reply = binarySwapBatch(request, requestId, decodeStart);
+                        break;
+                    case Protocol.OP_STATS:
+                        byte[] stats = metrics.format().getBytes(StandardCharsets.UTF_8);
+                        reply = ByteBuffer.allocate(Protocol.HEADER_SIZE + Protocol.MAX_VARINT_SIZE + stats.length);
+                        Protocol.putHeader(reply, opcode, Protocol.STATUS_OK, requestId);
+                        Protocol.putBytes(reply, stats);
+                        break;
+                    default:
+                        reply = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+                        Protocol.putHeader(reply, opcode, Protocol.STATUS_UNKNOWN_OP, requestId);
+                        break;
+                }
+            } catch (ProtocolException e) {
+                metrics.malformed();
+                reply = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+                Protocol.putHeader(reply, opcode, Protocol.STATUS_MALFORMED, requestId);
+            }
+
+            rememberReply(clientId, requestId, Arrays.copyOf(reply.array(), reply.position()));
+        } catch (RuntimeException | Error e) {
+            forgetReply(clientId, requestId);
+            throw e;
+        }
+
+        sendReply(reply.array(), reply.position(), address, port);
+    }
+
+    //Richiesta idempotente (clientId >= 0) già ricevuta: ritrasmissione del client. Rimanda la risposta già data
+    //oppure, se l'originale è ancora in esecuzione, non fa nulla (la sua risposta arriverà comunque al client).
+    //Ritorna true se la richiesta non va eseguita.
+    private boolean replayReply(long clientId, int requestId, InetAddress address, int port) {
+        ReplyCache cache = replyCache;
+
+        if (clientId < 0 || cache == null) {
+            return false;
+        }
+
+        byte[] reply = cache.begin(clientId, requestId);
+
+        if (reply == null) {
+            return false;
+        }
+
+        metrics.duplicate();
+
+        if (reply != ReplyCache.IN_PROGRESS) {
+            sendReply(reply, reply.length, address, port);
+        }
+
+        return true;
+    }
+
+    private void rememberReply(long clientId, int requestId, byte[] reply) {
+        ReplyCache cache = replyCache;
+
+        if (clientId >= 0 && cache != null) {
+            cache.complete(clientId, requestId, reply);
+        }
+    }
+
+    //La richiesta non ha prodotto una risposta: la ritrasmissione successiva verrà eseguita di nuovo.
+    private void forgetReply(long clientId, int requestId) {
+        ReplyCache cache = replyCache;
+
+        if (clientId >= 0 && cache != null) {
+            cache.abort(clientId, requestId);
+        }
+    }
+
+    private ByteBuffer binarySwap(int riga1, int riga2, int requestId) {
+        ByteBuffer reply;
+
+        //Fuori dal file: il client ricostruisce il messaggio dal numero di righe.
+        if (riga1 < 0 || riga2 < 0 || riga1 >= fileLineCount || riga2 >= fileLineCount) {
+            metrics.outOfRange();
+            reply = ByteBuffer.allocate(Protocol.HEADER_SIZE + Protocol.MAX_VARINT_SIZE);
+            Protocol.putHeader(reply, Protocol.OP_SWAP, Protocol.STATUS_OUT_OF_RANGE, requestId);
+            Protocol.putVarInt(reply, fileLineCount);
+            return reply;
+        }
+
+        String err = applySwap(riga1, riga2);
+
+        if (err == null) {
+            reply = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+            Protocol.putHeader(reply, Protocol.OP_SWAP, Protocol.STATUS_OK, requestId);
+        } else {
+            byte[] message = err.getBytes(StandardCharsets.UTF_8);
+            reply = ByteBuffer.allocate(Protocol.HEADER_SIZE + Protocol.MAX_VARINT_SIZE + message.length);
+            Protocol.putHeader(reply, Protocol.OP_SWAP, Protocol.STATUS_SERVER_ERROR, requestId);
+            Protocol.putBytes(reply, message);
+        }
+
+        return reply;
+    }
+
+    //Come swapBatch: le coppie fuori dal file vengono saltate, le altre applicate con una sola passata.
+    private ByteBuffer binarySwapBatch(ByteBuffer request, int requestId, long decodeStart) throws ProtocolException {
+        metrics.batch();
+
+        int pairs = Protocol.getVarInt(request);
+
+        //Ogni coppia occupa almeno due byte.
+        if (pairs < 0 || pairs > request.remaining() / 2) {
+            throw new ProtocolException("Numero di coppie non valido");
+        }
+
+        byte[] esiti = new byte[pairs];
+        int[] righe = new int[2 * pairs];
+        int count = 0;
+
+        for (int i = 0; i < pairs; i++) {
+            int riga1 = Protocol.getVarInt(request);
+            int riga2 = Protocol.getVarInt(request);
+
+            if (riga1 < 0 || riga2 < 0 || riga1 >= fileLineCount || riga2 >= fileLineCount) {
+                metrics.outOfRange();
+                esiti[i] = Protocol.STATUS_OUT_OF_RANGE;
+                continue;
+            }
+
+            righe[2 * count] = riga1;
+            righe[2 * count + 1] = riga2;
+            count++;
+
+            esiti[i] = Protocol.STATUS_OK;
+        }
+
+        metrics.phase(RowSwapServerMetrics.PHASE_DECODE, decodeStart);
+
+        if (applySwaps(righe, count) != null) {
+            //Non è stato applicato nulla: segnalo l'errore su tutte le coppie valide.
+            for (int i = 0; i < pairs; i++) {
+                if (esiti[i] == Protocol.STATUS_OK) esiti[i] = Protocol.STATUS_SERVER_ERROR;
+            }
+        }
+
+        ByteBuffer reply = ByteBuffer.allocate(Protocol.HEADER_SIZE + Protocol.MAX_VARINT_SIZE + pairs);
+        Protocol.putHeader(reply, Protocol.OP_SWAP_BATCH, Protocol.STATUS_OK, requestId);
+        Protocol.putVarInt(reply, pairs);
+        reply.put(esiti);
+        return reply;
+    }
+
+    //Compone lo swap nella permutazione sparsa: posizione --> riga (originale) che ci finisce.
+    private static void composeSwap(HashMap<Integer, Integer> permutazione, int riga1, int riga2) {
+        Integer sorgente1 = permutazione.getOrDefault(riga1, riga1);
+        Integer sorgente2 = permutazione.getOrDefault(riga2, riga2);
+        permutazione.put(riga1, sorgente2);
+        permutazione.put(riga2, sorgente1);
+    }
+
+    //Applica la permutazione sparsa con una sola passata sul file.
+    private String applyPermutation(HashMap<Integer, Integer> permutazione) {
+        //Tolgo le posizioni tornate al loro posto e ordino quelle rimaste.
+        int[] positions = permutazione.entrySet().stream()
+                .filter(entry -> !entry.getKey().equals(entry.getValue()))
+                .mapToInt(Map.Entry::getKey)
+                .sorted()
+                .toArray();
+        int[] sources = new int[positions.length];
+
+        for (int i = 0; i < positions.length; i++) {
+            sources[i] = permutazione.get(positions[i]);
+        }
+
+        return applyPermutation(positions, sources);
+    }
+
+    //Swap differito: scrive le coppie sul journal (se attivo, con il group commit) e le compone
+    //nella permutazione logica, scambiando due slot per coppia. Il file lo aggiorna il compattatore.
+    //Ritorna null se va tutto bene, altrimenti il messaggio d'errore.
+    private String deferSwaps(int[] righe, int count) {
+        return deferSwaps(righe, count, journalMode);
+    }
+
+    private String deferSwaps(int[] righe, int count, boolean writeJournal) {
+        if (count == 0) {
+            return null;
+        }
+
+        long mine;
+
+        synchronized (permutationLock) {
+            awaitCommitDrain();
+
+            //Il file può essere stato reindicizzato (e accorciato) dopo il controllo delle righe.
+            for (int i = 0; i < 2 * count; i++) {
+                if (righe[i] >= fileLineCount) {
+                    return FILE_CHANGED;
+                }
+            }
+
+            if (!writeJournal) {
+                for (int i = 0; i < count; i++) {
+                    permuteLines(righe[2 * i], righe[2 * i + 1]);
+                }
+
+                addPendingSwaps(count);
+                return null;
+            }
+
+            if (journalError != null) {
+                return journalError;
+            }
+
+            if (commitBuffer.remaining() < count * JOURNAL_ENTRY_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * commitBuffer.capacity(), commitBuffer.position() + count * JOURNAL_ENTRY_SIZE));
+                commitBuffer.flip();
+                commitBuffer = larger.put(commitBuffer);
+            }
+
+            for (int i = 0; i < 2 * count; i++) {
+                commitBuffer.putInt(righe[i]);
+            }
+
+            appendedSeq += count;
+            mine = appendedSeq;
+        }
+
+        return awaitCommit(mine);
+    }
+
+    //Aspetta che le voci fino a seq siano nel journal (forzate) e nella permutazione, facendo il commit
+    //di tutte quelle accodate se non c'è già qualcuno che lo sta facendo.
+    private String awaitCommit(long seq) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                ByteBuffer batch;
+                long batchEnd;
+
+                synchronized (permutationLock) {
+                    //Le voci sono già accodate: l'attesa non può essere interrotta, altrimenti lo swap
+                    //risulterebbe fallito e verrebbe comunque scritto dal commit successivo.
+                    while (committedSeq < seq && committing && journalError == null) {
+                        try {
+                            permutationLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+
+                    if (journalError != null) {
+                        return journalError;
+                    }
+
+                    if (committedSeq >= seq) {
+                        return null;
+                    }
+
+                    committing = true;
+                    batch = commitBuffer;
+                    batchEnd = appendedSeq;
+                    commitBuffer = spareCommitBuffer;
+                    commitBuffer.clear();
+                    spareCommitBuffer = batch;
+                    batch.flip();
+                }
+
+                String err = appendJournal(batch);
+
+                synchronized (permutationLock) {
+                    if (err == null) {
+                        for (int i = 0; i < batch.limit(); i += JOURNAL_ENTRY_SIZE) {
+                            permuteLines(batch.getInt(i), batch.getInt(i + Integer.BYTES));
+                        }
+
+                        addPendingSwaps((int) (batchEnd - committedSeq));
+                        committedSeq = batchEnd;
+                    } else {
+                        journalError = err;
+                        isFileValid = false;
+                        closed = true;
                     }
-                    bufferedWriter.newLine(); //dopo aver scritto la riga stampo il fine linea
+
+                    committing = false;
+                    permutationLock.notifyAll();
                 }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    //Scrive le voci in fondo al journal e le forza. Se fallisce provo a toglierle: il journal deve contenere
+    //solo gli swap confermati (non è detto che ci riesca, per questo poi il server si ferma).
+    private String appendJournal(ByteBuffer entries) {
+        synchronized (journalLock) {
+            long start = System.nanoTime();
+
+            try {
+                writeFully(journalChannel, entries, journalEnd);
+                journalChannel.force(false);
             } catch (IOException e) {
-                String err = "Errore nell'aprire il file: " + e.getMessage();
+                String err = "Impossibile scrivere sul journal: " + e.getMessage();
                 System.err.println(err);
+
+                try {
+                    journalChannel.truncate(journalEnd);
+                } catch (IOException e2) {
+                    System.err.println("Impossibile ripristinare il journal: " + e2.getMessage());
+                }
+
                 return err;
             }
 
-        } catch (IOException e) {
-            String err = "Impossibile creare il file temporaneo: " + e.getMessage();
-            System.err.println(err);
-            return err;
+            journalEnd += entries.limit();
+            metrics.phase(RowSwapServerMetrics.PHASE_REWRITE, start);
+            return null;
+        }
+    }
+
+    //Con una reindicizzazione completa in corso (permutationLock già preso): aspetta che il commit delle voci
+    //già accodate finisca, così finiscono nel journal e nella permutazione e vengono scartate con le altre.
+    //Le nuove voci restano ferme finché non si chiama endCommitDrain().
+    private void drainCommit() {
+        commitDraining = true;
+        boolean interrupted = false;
+
+        //Chi ha accodato voci senza trovare un commit in corso lo avvia appena rilascio il lock.
+        while ((committing || committedSeq < appendedSeq) && journalError == null) {
+            try {
+                permutationLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    //Con permutationLock: aspetta la fine di una reindicizzazione completa prima di accodare voci.
+    //L'attesa è breve (una force) e non si interrompe, come quella del commit.
+    private void awaitCommitDrain() {
+        boolean interrupted = false;
+
+        while (commitDraining) {
+            try {
+                permutationLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void endCommitDrain() {
+        commitDraining = false;
+        permutationLock.notifyAll();
+    }
+
+    //Scambia due slot della permutazione logica (con permutationLock).
+    private void permuteLines(int riga1, int riga2) {
+        int fisica1 = permutation.get(riga1);
+
+        permutation.put(riga1, permutation.get(riga2));
+        permutation.put(riga2, fisica1);
+        dirtyLines.set(riga1);
+        dirtyLines.set(riga2);
+    }
+
+    //Conta gli swap composti nella permutazione e programma la compattazione (con permutationLock).
+    private void addPendingSwaps(int count) {
+        if (pendingSwaps == 0) {
+            oldestPendingMillis = System.currentTimeMillis();
+        }
+
+        pendingSwaps += count;
+        scheduleCompaction();
+    }
+
+    //Programma la compattazione per quando il più vecchio swap in attesa ha commitMillis ms o, con commitSwaps
+    //swap in attesa, subito (con permutationLock). Prima di start() non c'è scheduler: compatta initDeferredMode.
+    private void scheduleCompaction() {
+        if (compactor == null || pendingSwaps == 0) {
+            return;
+        }
+
+        long delay = pendingSwaps >= commitSwaps ? 0 : Math.max(oldestPendingMillis + commitMillis - System.currentTimeMillis(), 0);
+
+        //Già programmata non più tardi, o in corso: al termine si riprogramma lei.
+        if (scheduledCompaction != null && (scheduledCompaction.getDelay(TimeUnit.MILLISECONDS) <= delay || !scheduledCompaction.cancel(false))) {
+            return;
+        }
+
+        scheduledCompaction = compactor.schedule(compactionTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    //Compattazione programmata: se nel frattempo si sono accumulati altri swap (o è fallita) la riprogramma.
+    private void runCompaction() {
+        synchronized (compactionLock) {
+            compact();
+        }
+
+        synchronized (permutationLock) {
+            scheduledCompaction = null;
+            scheduleCompaction();
+        }
+    }
+
+    //Materializza la permutazione logica nel file con un'unica riscrittura e toglie dal journal gli swap applicati.
+    //La permutazione viene presa e azzerata sotto lock: gli swap che arrivano durante la riscrittura
+    //si accumulano su quella nuova, relativa al file già compattato.
+    private void compact() {
+        int count;
+        int[] positions;
+        int[] sources;
+        int generation;
+        long upTo;
+
+        synchronized (permutationLock) {
+            count = pendingSwaps;
+            generation = indexGeneration;
+            //Gli swap in attesa sono le prime count voci del journal.
+            upTo = journalBase + count;
+
+            //Dopo un errore successivo al checkpoint il file resta com'è: lo completa il riavvio.
+            if (count == 0 || !isFileValid) {
+                return;
+            }
+
+            int[] dirty = dirtyLines.stream().toArray();
+            int n = 0;
+
+            positions = new int[dirty.length];
+            sources = new int[dirty.length];
+
+            for (int line : dirty) {
+                if (permutation.get(line) != line) {
+                    positions[n] = line;
+                    sources[n++] = permutation.get(line);
+                    permutation.put(line, line);
+                }
+            }
+
+            positions = Arrays.copyOf(positions, n);
+            sources = Arrays.copyOf(sources, n);
+            dirtyLines.clear();
+            pendingSwaps = 0;
+        }
+
+        String err = applyPermutation(positions, sources, generation, journalMode ? upTo : -1);
+
+        if (err == FILE_CHANGED) {
+            //Il file è stato reindicizzato da capo nel frattempo, scartando gli swap in attesa (e il journal).
+            return;
+        }
+
+        synchronized (permutationLock) {
+            if (err != null) {
+                //Il file non è cambiato: rimetto la permutazione presa sotto a quella accumulata nel frattempo
+                //e riprovo al prossimo giro.
+                for (int line : positions) {
+                    dirtyLines.set(line);
+                }
+
+                for (int line = dirtyLines.nextSetBit(0); line >= 0; line = dirtyLines.nextSetBit(line + 1)) {
+                    int index = Arrays.binarySearch(positions, permutation.get(line));
+                    if (index >= 0) permutation.put(line, sources[index]);
+                }
+
+                if (pendingSwaps == 0) {
+                    oldestPendingMillis = System.currentTimeMillis();
+                }
+
+                pendingSwaps += count;
+                return;
+            }
+
+            if (journalMode) {
+                //Il file è forzato: tolgo dal journal le voci applicate (restano quelle arrivate durante la
+                //riscrittura) e il checkpoint non serve più. Una reindicizzazione nel frattempo le ha già scartate.
+                try {
+                    if (upTo > journalBase) {
+                        writeJournal(upTo, journalOffset(upTo));
+                    }
+
+                    Files.deleteIfExists(checkpointPath);
+                } catch (IOException e) {
+                    //Il riavvio salterà le voci già nel file grazie al checkpoint; qui il journal non corrisponde più.
+                    System.err.println("Impossibile compattare il journal: " + e.getMessage());
+                    isFileValid = false;
+                    closed = true;
+                }
+            }
+        }
+    }
+
+    //Prepara la permutazione logica (identità) e, con il journal, riapplica gli swap confermati
+    //ma non ancora scritti nel file (es. dopo un crash). Da chiamare dopo countLines().
+    //Cancella anche il temporaneo di una riscrittura interrotta, in qualsiasi modalità.
+    public void initDeferredMode() {
+        if (!isFileValid) {
+            return;
+        }
+
+        if (journalMode) {
+            try {
+                openJournal();
+
+                //Completando la compattazione il file è stato sostituito: va reindicizzato.
+                if (recoverCheckpoint()) {
+                    countLines();
+                }
+            } catch (IOException e) {
+                System.err.println("Impossibile aprire il journal " + journalPath + ": " + e.getMessage());
+                isFileValid = false;
+            }
+
+            if (!isFileValid) {
+                return;
+            }
+        }
+
+        //Il checkpoint (se c'era) è stato completato: un temporaneo rimasto è una riscrittura mai confermata.
+        //Un checkpoint ancora presente (avvio senza journal) lo lascio a un riavvio con il journal.
+        try {
+            if (!Files.exists(checkpointPath)) Files.deleteIfExists(rewritePath);
+        } catch (IOException e) {
+            System.err.println("Impossibile cancellare il temporaneo " + rewritePath + ": " + e.getMessage());
+        }
+
+        if (!isDeferredMode()) {
+            return;
+        }
+
+        try {
+            permutation = newPermutation(fileLineCount, null, 0);
+        } catch (IOException e) {
+            System.err.println("Impossibile differire gli swap su " + filename + ": " + e.getMessage());
+            isFileValid = false;
+            return;
+        }
+
+        dirtyLines = new BitSet(fileLineCount);
+
+        if (!journalMode) {
+            return;
+        }
+
+        try {
+            long entries = (journalEnd - JOURNAL_HEADER_SIZE) / JOURNAL_ENTRY_SIZE;
+
+            if (entries > Integer.MAX_VALUE / JOURNAL_ENTRY_SIZE) {
+                throw new IOException("troppe voci (" + entries + ")");
+            }
+
+            int count = (int) entries;
+            ByteBuffer buffer = ByteBuffer.allocate(count * JOURNAL_ENTRY_SIZE);
+
+            while (buffer.hasRemaining()) {
+                if (journalChannel.read(buffer, JOURNAL_HEADER_SIZE + buffer.position()) < 0) break;
+            }
+
+            buffer.flip();
+
+            int[] righe = new int[2 * count];
+            buffer.asIntBuffer().get(righe);
+
+            for (int riga : righe) {
+                if (riga < 0 || riga >= fileLineCount) {
+                    throw new IOException("il journal non corrisponde al file");
+                }
+            }
+
+            if (count > 0) {
+                System.out.println("Riapplico " + count + " swap dal journal.");
+
+                //Le coppie sono già sul journal: le compongo senza riscriverle.
+                deferSwaps(righe, count, false);
+
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Impossibile leggere il journal " + journalPath + ": " + e.getMessage());
+            isFileValid = false;
+        }
+    }
+
+    //Apre il journal e ne legge l'header. Una voce scritta a metà (crash durante la scrittura) non è mai stata
+    //confermata: la scarto. Un journal nuovo o del formato precedente (solo voci) lo riscrivo con l'header.
+    private void openJournal() throws IOException {
+        journalChannel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (journalChannel.read(header, header.position()) < 0) break;
+        }
+
+        long size = journalChannel.size();
+
+        if (header.position() >= Integer.BYTES && header.getInt(0) == JOURNAL_MAGIC) {
+            if (header.hasRemaining() || header.getInt(Integer.BYTES) != JOURNAL_VERSION) {
+                throw new IOException("header del journal non valido");
+            }
+
+            journalBase = header.getLong(2 * Integer.BYTES);
+            journalEnd = size - (size - JOURNAL_HEADER_SIZE) % JOURNAL_ENTRY_SIZE;
+            journalChannel.truncate(journalEnd);
+            return;
+        }
+
+        journalEnd = size - size % JOURNAL_ENTRY_SIZE;
+        journalChannel.truncate(journalEnd);
+        journalBase = 0;
+        writeJournal(0, 0);
+    }
+
+    //Posizione nel journal della voce con numero di sequenza seq.
+    private long journalOffset(long seq) {
+        return JOURNAL_HEADER_SIZE + (seq - journalBase) * JOURNAL_ENTRY_SIZE;
+    }
+
+    //Riscrive il journal con numero di sequenza iniziale base e le voci che nel journal attuale partono da from.
+    //Passa da un temporaneo forzato e spostato con ATOMIC_MOVE: dopo un crash c'è il journal vecchio o quello
+    //nuovo, mai uno a metà. Con permutationLock (o prima di avviare il server); journalLock lo separa dai commit.
+    private void writeJournal(long base, long from) throws IOException {
+        Path tmpPath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+
+        synchronized (journalLock) {
+            long length = Math.max(journalEnd - from, 0);
+
+            try (FileChannel tmpChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+                header.putInt(JOURNAL_MAGIC).putInt(JOURNAL_VERSION).putLong(base).flip();
+                writeFully(tmpChannel, header);
+                transferFully(journalChannel, from, length, tmpChannel);
+                tmpChannel.force(false);
+            }
+
+            moveDurably(tmpPath, journalPath);
+
+            journalChannel.close();
+            journalChannel = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            journalEnd = JOURNAL_HEADER_SIZE + length;
+            journalBase = base;
+        }
+    }
+
+    //Scrive il checkpoint della compattazione delle voci del journal fino a upTo (esclusa), prima di toccare il file:
+    //i nuovi contenuti delle righe in positions (buffers come in applyPermutationLocked) oppure, con tmpPath,
+    //il temporaneo forzato che sostituirà il file. Anche il checkpoint passa da un temporaneo e ATOMIC_MOVE.
+    private void writeCheckpoint(long upTo, int[] positions, SwapBuffers buffers, Path tmpPath) throws IOException {
+        Path checkpointTmp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+
+        try (FileChannel channel = FileChannel.open(checkpointTmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream data = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+
+            data.writeInt(CHECKPOINT_MAGIC);
+            data.writeLong(upTo);
+
+            if (tmpPath != null) {
+                data.writeByte(CHECKPOINT_RENAME);
+                data.writeUTF(tmpPath.getFileName().toString());
+            } else {
+                data.writeByte(CHECKPOINT_IN_PLACE);
+                data.writeInt(positions.length);
+
+                for (int i = 0; i < positions.length; i++) {
+                    int source = buffers.from[i];
+                    int length = buffers.contentLength[source];
+
+                    data.writeLong(lineOffsets[positions[i]]);
+                    data.writeInt(length);
+                    data.write(buffers.raw[source], 0, length);
+                }
+            }
+
+            data.flush();
+            data.writeLong(crc.getValue());
+            data.flush();
+            channel.force(false);
+        }
+
+        moveDurably(checkpointTmp, checkpointPath);
+    }
+
+    //Ripete la compattazione interrotta da un crash se il checkpoint copre voci ancora nel journal, poi le toglie
+    //dal journal. Un checkpoint già superato (crash prima di cancellarlo) lo scarta.
+    //Ritorna true se il file è stato sostituito. Da chiamare dopo openJournal().
+    private boolean recoverCheckpoint() throws IOException {
+        if (!Files.exists(checkpointPath)) {
+            return false;
+        }
+
+        CRC32C crc = new CRC32C();
+        long upTo;
+        byte kind;
+        long[] offsets = null;
+        byte[][] contents = null;
+        Path tmpPath = null;
+
+        try (InputStream in = Files.newInputStream(checkpointPath);
+             CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in, 1 << 16), crc);
+             DataInputStream data = new DataInputStream(checked)) {
+            if (data.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("checkpoint " + checkpointPath + " non valido");
+            }
+
+            upTo = data.readLong();
+            kind = data.readByte();
+
+            if (kind == CHECKPOINT_RENAME) {
+                tmpPath = filePath.resolveSibling(data.readUTF());
+            } else {
+                int n = data.readInt();
+                offsets = new long[n];
+                contents = new byte[n][];
+
+                for (int i = 0; i < n; i++) {
+                    offsets[i] = data.readLong();
+                    contents[i] = new byte[data.readInt()];
+                    data.readFully(contents[i]);
+                }
+            }
+
+            long expected = crc.getValue();
+
+            if (data.readLong() != expected) {
+                throw new IOException("checkpoint " + checkpointPath + " danneggiato");
+            }
+        }
+
+        boolean replaced = false;
+
+        if (upTo > journalBase) {
+            System.out.println("Completo la compattazione interrotta del file " + filename + ".");
+
+            if (kind == CHECKPOINT_RENAME) {
+                //Senza temporaneo la rinomina era già avvenuta.
+                if (Files.exists(tmpPath)) {
+                    moveDurably(tmpPath, filePath);
+                    replaced = true;
+                }
+            } else {
+                long size = dataChannel.size();
+
+                for (int i = 0; i < offsets.length; i++) {
+                    if (offsets[i] < 0 || offsets[i] + contents[i].length > size) {
+                        throw new IOException("il checkpoint non corrisponde al file");
+                    }
+
+                    writeFully(dataChannel, ByteBuffer.wrap(contents[i]), offsets[i]);
+                }
+
+                forceData();
+            }
+
+            writeJournal(upTo, journalOffset(upTo));
+        }
+
+        Files.delete(checkpointPath);
+        return replaced;
+    }
+
+    //Errore nel toccare il file dopo averne scritto il checkpoint: il file può essere a metà, lo completerà
+    //il riavvio. Intanto mi fermo (anche il compattatore, vedi compact).
+    private void stopAfterCheckpoint(long checkpoint) {
+        if (checkpoint >= 0) {
+            isFileValid = false;
+            closed = true;
+        }
+    }
+
+    //Forza su disco le scritture sul posto, fatte dal canale o dalla mappatura.
+    private void forceData() throws IOException {
+        if (mappedChunks != null) {
+            for (MappedByteBuffer chunk : mappedChunks) {
+                chunk.force();
+            }
+        }
+
+        dataChannel.force(false);
+    }
+
+    //Sostituisce target con source con una rinomina atomica e forza la directory, così la rinomina sopravvive a un crash.
+    private static void moveDurably(Path source, Path target) throws IOException {
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(target);
+    }
+
+    //Forza su disco la directory che contiene path (nomi creati, rinominati o cancellati).
+    private static void forceDirectory(Path path) throws IOException {
+        FileChannel channel;
+
+        try {
+            channel = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            //Su alcuni sistemi (es. Windows) una directory non si apre come file: lì non la posso forzare.
+            return;
+        }
+
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    //Permutazione logica di lines righe: le prime kept copiate da previous, le altre identità.
+    private static IntBuffer newPermutation(int lines, IntBuffer previous, int kept) throws IOException {
+        long bytes = (long) lines * Integer.BYTES;
+
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("troppe righe per gli swap differiti (" + lines + ", al massimo " + MAX_PERMUTATION_LINES + ")");
+        }
+
+        //Per i file grandi la permutazione sta fuori dallo heap.
+        IntBuffer result = lines > OFF_HEAP_PERMUTATION_LINES
+                ? ByteBuffer.allocateDirect((int) bytes).asIntBuffer()
+                : IntBuffer.allocate(lines);
+
+        for (int i = 0; i < kept; i++) {
+            result.put(i, previous.get(i));
+        }
+
+        for (int i = kept; i < lines; i++) {
+            result.put(i, i);
+        }
+
+        return result;
+    }
+
+    //Applica la permutazione in un'unica passata: la riga in posizione positions[i] (crescenti, distinte)
+    //prende il contenuto della riga sources[i]; sources contiene le stesse righe di positions.
+    //I terminatori restano nelle loro posizioni. Ritorna null se va tutto bene, altrimenti il messaggio d'errore.
+    private String applyPermutation(int[] positions, int[] sources) {
+        return applyPermutation(positions, sources, -1, -1);
+    }
+
+    //generation (se non negativo) è l'indexGeneration con cui è stata preparata la permutazione.
+    //checkpoint (se non negativo) è il numero di sequenza fino a cui la compattazione applica il journal:
+    //prima di toccare il file ne scrivo il checkpoint e le modifiche le forzo su disco.
+    private String applyPermutation(int[] positions, int[] sources, int generation, long checkpoint) {
+        return applyPermutation(positions, sources, generation, checkpoint, new SwapBuffers(positions.length));
+    }
+
+    //buffers: appoggi per positions.length righe (vedi SwapBuffers).
+    private String applyPermutation(int[] positions, int[] sources, int generation, long checkpoint, SwapBuffers buffers) {
+        if (positions.length == 0) {
+            return null;
+        }
+
+        //Prima provo lo scambio sul posto bloccando solo le righe coinvolte (a strisce): gli offset non cambiano,
+        //quindi mi basta il lock in lettura sul file e swap su righe lontane procedono in parallelo.
+        String err;
+        fileLock.readLock().lock();
+
+        try {
+            int stripes = lockLines(positions, buffers.stripes);
+
+            try {
+                err = applyPermutationLocked(positions, sources, generation, checkpoint, true, buffers);
+            } finally {
+                unlockLines(buffers.stripes, stripes);
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+
+        if (err != NEEDS_REWRITE) {
+            return err;
+        }
+
+        //Lunghezze diverse: la riscrittura cambia gli offset, quindi prendo il file in esclusiva.
+        fileLock.writeLock().lock();
+
+        try {
+            return applyPermutationLocked(positions, sources, generation, checkpoint, false, buffers);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    //Blocca, in ordine crescente per evitare deadlock, le strisce delle righe indicate. Le scrive (distinte)
+    //in stripes, lungo almeno quanto lines, e ne ritorna il numero.
+    private int lockLines(int[] lines, int[] stripes) {
+        for (int i = 0; i < lines.length; i++) {
+            stripes[i] = lines[i] % LINE_LOCK_STRIPES;
+        }
+
+        Arrays.sort(stripes, 0, lines.length);
+        int count = 0;
+
+        for (int i = 0; i < lines.length; i++) {
+            if (count == 0 || stripes[count - 1] != stripes[i]) {
+                stripes[count++] = stripes[i];
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            lineLocks[stripes[i]].lock();
+        }
+
+        return count;
+    }
+
+    private void unlockLines(int[] stripes, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            lineLocks[stripes[i]].unlock();
+        }
+    }
+
+    //Appoggi di applyPermutationLocked per n righe: contenuti letti, lunghezze, indici e strisce da bloccare.
+    //Chi li riusa (la via veloce, uno per richiesta del pool) a regime non alloca: il buffer di una riga
+    //cresce solo quando ne arriva una più lunga e torna piccolo dopo una riga enorme.
+    private static final class SwapBuffers {
+        private static final int MIN_LINE_BUFFER = 256;
+        private static final int MAX_RETAINED_LINE = 64 * 1024;
+
+        private final byte[][] raw;
+        private final ByteBuffer[] views;
+        private final int[] rawLength;
+        private final int[] contentLength;
+        private final int[] from;
+        private final int[] stripes;
+
+        private SwapBuffers(int n) {
+            raw = new byte[n][];
+            views = new ByteBuffer[n];
+            rawLength = new int[n];
+            contentLength = new int[n];
+            from = new int[n];
+            stripes = new int[n];
+        }
+
+        //Prepara il buffer slot per length byte e ritorna la sua vista per i canali, limitata a length.
+        private ByteBuffer line(int slot, int length) {
+            byte[] buffer = raw[slot];
+
+            if (buffer == null || buffer.length < length || (buffer.length > MAX_RETAINED_LINE && length <= MAX_RETAINED_LINE)) {
+                buffer = new byte[Math.max(length, MIN_LINE_BUFFER)];
+                raw[slot] = buffer;
+                views[slot] = ByteBuffer.wrap(buffer);
+            }
+
+            rawLength[slot] = length;
+            ByteBuffer view = views[slot];
+            view.clear().limit(length);
+            return view;
+        }
+    }
+
+    //Con inPlaceOnly, se le righe non hanno tutte la stessa lunghezza non tocca il file e ritorna NEEDS_REWRITE.
+    private String applyPermutationLocked(int[] positions, int[] sources, int generation, long checkpoint, boolean inPlaceOnly, SwapBuffers buffers) {
+        int n = positions.length;
+
+        //Il file può essere stato reindicizzato dopo il controllo delle righe (positions è crescente).
+        if (positions[n - 1] >= fileLineCount || (generation >= 0 && generation != indexGeneration)) {
+            return FILE_CHANGED;
+        }
+
+        //Grazie all'indice leggo direttamente le righe coinvolte
+        byte[][] raw = buffers.raw;
+        int[] rawLength = buffers.rawLength;
+        int[] contentLength = buffers.contentLength;
+        long start = System.nanoTime();
+
+        try {
+            for (int i = 0; i < n; i++) {
+                readLineBytes(positions[i], buffers, i);
+                contentLength[i] = rawLength[i] - terminatorLength(raw[i], rawLength[i]);
+            }
+        } catch (IOException e) {
+            String err = "Errore nel leggere il file: " + e.getMessage();
+            System.err.println(err);
+            return err;
+            //non esco ma rispondo con una stringa che rappresenta il problema
+        }
+
+        start = metrics.phase(RowSwapServerMetrics.PHASE_LOCATE, start);
+
+        //Per ogni posizione, l'indice (in positions) della riga che ci finisce.
+        int[] from = buffers.from;
+        boolean sameLength = true;
+
+        for (int i = 0; i < n; i++) {
+            from[i] = Arrays.binarySearch(positions, sources[i]);
+            sameLength &= contentLength[from[i]] == contentLength[i];
+        }
+
+        if (sameLength) {
+            //Righe della stessa lunghezza: scambio i byte direttamente nel file (i terminatori restano al loro posto).
+            //Gli offset non cambiano, quindi l'indice resta valido.
+            try {
+                if (checkpoint >= 0) {
+                    writeCheckpoint(checkpoint, positions, buffers, null);
+                }
+            } catch (IOException e) {
+                String err = "Impossibile scrivere il checkpoint: " + e.getMessage();
+                System.err.println(err);
+                return err;
+            }
+
+            try {
+                for (int i = 0; i < n; i++) {
+                    writeLineBytes(lineOffsets[positions[i]], buffers, from[i], contentLength[from[i]]);
+                }
+
+                if (checkpoint >= 0) {
+                    forceData();
+                }
+
+                if (watchMode) {
+                    ownInPlaceWrites = true;
+                }
+            } catch (IOException e) {
+                String err = "Errore nello scrivere il file: " + e.getMessage();
+                System.err.println(err);
+                stopAfterCheckpoint(checkpoint);
+                return err;
+            }
+            metrics.phase(RowSwapServerMetrics.PHASE_REWRITE, start);
+            return null;
+        }
+
+        if (inPlaceOnly) {
+            return NEEDS_REWRITE;
+        }
+
+        //Buffer temporaneo del file temporaneo.
+        //Path tmpPath = Paths.get(new File(getId() + ".tmp").toURI());
+        //Accanto al file, così la rinomina è atomica e la rende durevole forzare la sua directory.
+        Path tmpPath = rewritePath;
+
+        //Nuova lunghezza (terminatore compreso) di ciascuna posizione toccata.
+        long[] newLength = new long[n];
+
+        RowSwapEvents.TmpFileWrite writeEvent = null;
+        if (RowSwapEvents.TMP_FILE_WRITE_TYPE.isEnabled()) {
+            writeEvent = new RowSwapEvents.TmpFileWrite();
+            writeEvent.begin();
+        }
+
+        //Righe di lunghezza diversa: riscrivo il file nel temporaneo senza decodificarlo.
+        //Le parti non toccate le copia il kernel con transferTo, da user space scrivo solo
+        //i contenuti spostati, ciascuno con il terminatore della posizione in cui finisce.
+        try (FileChannel tmpChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long cursor = 0;
+
+            for (int i = 0; i < n; i++) {
+                byte[] source = raw[from[i]];
+                int sourceLength = contentLength[from[i]];
+                int terminator = rawLength[i] - contentLength[i];
+
+                transferFully(dataChannel, cursor, lineOffsets[positions[i]] - cursor, tmpChannel);
+                writeFully(tmpChannel, ByteBuffer.wrap(source, 0, sourceLength));
+
+                if (terminator == 0 && sourceLength == 0) {
+                    //Ultima riga senza terminatore su cui finisce una riga vuota: la riga sparirebbe,
+                    //le do il terminatore della riga di provenienza.
+                    writeFully(tmpChannel, ByteBuffer.wrap(source, 0, rawLength[from[i]]));
+                    newLength[i] = rawLength[from[i]];
+                } else {
+                    writeFully(tmpChannel, ByteBuffer.wrap(raw[i], contentLength[i], terminator));
+                    newLength[i] = sourceLength + terminator;
+                }
+
+                cursor = lineOffsets[positions[i] + 1];
+            }
+
+            transferFully(dataChannel, cursor, lineOffsets[fileLineCount] - cursor, tmpChannel);
+            //Prima della rinomina: un crash subito dopo non deve lasciare un file vuoto o a metà.
+            tmpChannel.force(false);
+        } catch (IOException e) {
+            String err = "Impossibile creare il file temporaneo: " + e.getMessage();
+            System.err.println(err);
+            commitTmpFileWrite(writeEvent, tmpPath, rawLength, newLength, err);
+            return err;
+        }
+
+        long tmpSize = commitTmpFileWrite(writeEvent, tmpPath, rawLength, newLength, null);
+        start = metrics.phase(RowSwapServerMetrics.PHASE_REWRITE, start);
+
+        try {
+            if (checkpoint >= 0) {
+                writeCheckpoint(checkpoint, null, null, tmpPath);
+            }
+        } catch (IOException e) {
+            String err = "Impossibile scrivere il checkpoint: " + e.getMessage();
+            System.err.println(err);
+
+            try {
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException e2) {
+                e2.printStackTrace();
+            }
+
+            return err;
+        }
+
+        RowSwapEvents.FileMove moveEvent = null;
+        if (RowSwapEvents.FILE_MOVE_TYPE.isEnabled()) {
+            moveEvent = new RowSwapEvents.FileMove();
+            moveEvent.begin();
+        }
+        String moveErr = null;
+
+        try {
+            //sposto il file tmp in quello finale
+            Files.move(tmpPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            moveErr = "Impossibile spostare il file temporaneo: " + e.getMessage();
+            System.err.println(moveErr);
+        }
+
+        if (moveEvent != null && moveEvent.shouldCommit()) {
+            moveEvent.source = tmpPath.toString();
+            moveEvent.target = filePath.toString();
+            moveEvent.bytes = tmpSize;
+            moveEvent.error = moveErr;
+            moveEvent.commit();
+        }
+
+        if (moveErr != null) {
+            stopAfterCheckpoint(checkpoint);
+            return moveErr;
+        }
+
+        try {
+            //Il file è stato sostituito: rendo durevole la rinomina e riapro il canale (e le mappature) sul nuovo.
+            forceDirectory(filePath);
+            openDataChannel();
+        } catch (IOException e) {
+            String err = "Impossibile riaprire il file: " + e.getMessage();
+            System.err.println(err);
+            isFileValid = false;
+            return err;
+        }
+
+        metrics.phase(RowSwapServerMetrics.PHASE_MOVE, start);
+
+        //Aggiorno l'indice dalla prima all'ultima posizione toccata: le righe in mezzo si spostano,
+        //quelle dopo no (la permutazione non cambia la dimensione, salvo il terminatore aggiunto in coda).
+        long oldStart = lineOffsets[positions[0]];
+        long newStart = oldStart;
+
+        for (int line = positions[0], i = 0; line <= positions[n - 1]; line++) {
+            long oldEnd = lineOffsets[line + 1];
+
+            if (line == positions[i]) {
+                newStart += newLength[i++];
+            } else {
+                newStart += oldEnd - oldStart;
+            }
+
+            oldStart = oldEnd;
+            lineOffsets[line + 1] = newStart;
+        }
+
+        rememberFileState();
+        return null;
+    }
+
+    //Registra lo stato del file appena scritto o indicizzato dal server (con il lock in scrittura sul file).
+    private void rememberFileState() {
+        if (!watchMode || lineOffsets == null) {
+            return;
+        }
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            knownFileKey = fileKey(attributes);
+            knownSize = lineOffsets[fileLineCount];
+            knownModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            ownInPlaceWrites = false;
+        } catch (IOException e) {
+            //Al prossimo evento il file risulterà cambiato e verrà reindicizzato.
+            knownFileKey = null;
+        }
+    }
+
+    //Fa osservare al gruppo la directory del file servito, partendo dallo stato attuale del file.
+    private void startWatching() {
+        fileLock.writeLock().lock();
+
+        try {
+            rememberFileState();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+
+        try {
+            group.watch(this);
+        } catch (IOException e) {
+            System.err.println("Impossibile osservare il file " + filename + ": " + e.getMessage());
+        }
+    }
+
+    //Controlla se il file è stato modificato da un altro processo e nel caso lo reindicizza.
+    private void checkExternalChange() {
+        //Anche gli scambi sul posto del server generano eventi: li riconosco senza fermare gli swap.
+        //Azzero il flag prima di leggere lo mtime, così quello di una scrittura concorrente non va perso.
+        boolean ownWrites = ownInPlaceWrites;
+        ownInPlaceWrites = false;
+
+        try {
+            if (isOwnState(Files.readAttributes(filePath, BasicFileAttributes.class), knownSize, ownWrites)) {
+                return;
+            }
+        } catch (IOException e) {
+            //Il file può mancare per un istante (es. ricreato da un editor): ricontrollo sotto lock.
+        }
+
+        //Cambiato, o riscritto dal server nel frattempo: ricontrollo con gli swap fermi (anche quelli differiti).
+        synchronized (permutationLock) {
+            fileLock.writeLock().lock();
+
+            try {
+                ownWrites |= ownInPlaceWrites;
+                ownInPlaceWrites = false;
+
+                BasicFileAttributes attributes;
+
+                try {
+                    attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    //Es. file sostituito da un editor (cancellato e ricreato): aspetto l'evento successivo.
+                    System.err.println("Impossibile leggere gli attributi di " + filename + ": " + e.getMessage());
+                    return;
+                }
+
+                long indexedSize = lineOffsets[fileLineCount];
+
+                if (!isFileValid || isOwnState(attributes, indexedSize, ownWrites)) {
+                    return;
+                }
+
+                //Stesso file allungato: l'ipotesi è che sia stato solo aggiunto in coda.
+                reindex(fileKey(attributes).equals(knownFileKey) && attributes.size() > indexedSize);
+            } catch (IOException e) {
+                //L'indice non corrisponde più al file: meglio fermarsi che scambiare righe sbagliate.
+                System.err.println("Impossibile reindicizzare il file " + filename + ": " + e.getMessage());
+                isFileValid = false;
+                closed = true;
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+        }
+    }
+
+    //true se il file è quello scritto dal server (lo mtime può essere cambiato solo per i suoi scambi sul posto).
+    private boolean isOwnState(BasicFileAttributes attributes, long size, boolean ownWrites) {
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        if (!fileKey(attributes).equals(knownFileKey) || attributes.size() != size || (modified != knownModified && !ownWrites)) {
+            return false;
+        }
+
+        knownModified = modified;
+        return true;
+    }
+
+    //Aggiorna l'indice dopo una modifica esterna (con permutationLock e il lock in scrittura sul file).
+    //Con append riscandisco solo dall'inizio dell'ultima riga, che può essere stata completata, e la permutazione
+    //logica viene estesa; altrimenti riscandisco tutto il file e scarto gli swap differiti non ancora scritti.
+    private void reindex(boolean append) throws IOException {
+        RowSwapEvents.Reindex event = null;
+        if (RowSwapEvents.REINDEX_TYPE.isEnabled()) {
+            event = new RowSwapEvents.Reindex();
+            event.begin();
+        }
+
+        int oldCount = fileLineCount;
+        int kept = append ? Math.max(oldCount - 1, 0) : 0;
+        long from = lineOffsets[kept];
+
+        //Dimensione o file diversi: riapro il canale (e le mappature).
+        openDataChannel();
+
+        long size = dataChannel.size();
+        LineIndexBuilder builder = indexRange(dataChannel, mappedChunks, from, size);
+        int count = kept + builder.getCount();
+        long[] offsets = new long[count + 1];
+
+        System.arraycopy(lineOffsets, 0, offsets, 0, kept);
+        System.arraycopy(builder.getOffsets(), 0, offsets, kept, builder.getCount() + 1);
+
+        int discarded = 0;
+
+        if (isDeferredMode()) {
+            if (!append) {
+                //Con il journal anche le voci accodate vanno scartate: le lascio finire il commit.
+                if (journalChannel != null) {
+                    drainCommit();
+                }
+
+                discarded = pendingSwaps;
+                pendingSwaps = 0;
+                dirtyLines.clear();
+
+                if (journalChannel != null) {
+                    try {
+                        writeJournal(journalBase + (journalEnd - JOURNAL_HEADER_SIZE) / JOURNAL_ENTRY_SIZE, journalEnd);
+                    } finally {
+                        endCommitDrain();
+                    }
+                }
+            }
+
+            permutation = newPermutation(count, permutation, append ? oldCount : 0);
+        }
+
+        if (!append) {
+            indexGeneration++;
+        }
+
+        lineOffsets = offsets;
+        fileLineCount = count;
+        rememberFileState();
+
+        System.out.println("File " + filename + " modificato da un altro processo: reindicizzat" + (append ? "a la coda" : "o")
+                + ", righe " + oldCount + " --> " + count + (discarded > 0 ? ", scartati " + discarded + " swap non ancora scritti" : ""));
+
+        if (event != null && event.shouldCommit()) {
+            event.filename = filename;
+            event.append = append;
+            event.linesBefore = oldCount;
+            event.linesAfter = count;
+            event.bytesScanned = size - from;
+            event.discardedSwaps = discarded;
+            event.commit();
+        }
+    }
+
+    //Completa l'evento della scrittura del temporaneo e ritorna la dimensione del temporaneo: le righe spostate
+    //sono scritte da user space (newLength), tutto il resto è copiato dal kernel.
+    private long commitTmpFileWrite(RowSwapEvents.TmpFileWrite event, Path tmpPath, int[] rawLength, long[] newLength, String err) {
+        long moved = 0;
+        long written = 0;
+
+        for (int i = 0; i < rawLength.length; i++) {
+            moved += rawLength[i];
+            written += newLength[i];
+        }
+
+        long transferred = lineOffsets[fileLineCount] - moved;
+
+        if (event != null && event.shouldCommit()) {
+            event.path = tmpPath.toString();
+            event.lines = rawLength.length;
+            event.bytesTransferred = err == null ? transferred : 0;
+            event.bytesWritten = err == null ? written : 0;
+            event.error = err;
+            event.commit();
+        }
+
+        return transferred + written;
+    }
+
+    public void registerOnDiscovery() {
+        if (!isRegistered()) {
+            //Apro una richiesta di registrazione al discovery.
+
+            try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
+                doStream.writeUTF(CMD_REGISTER + ":" + filename + ":" + addressRS.getHostAddress() + ":" + portRS);
+
+                packet.setAddress(addressDS);
+                packet.setPort(portDS)
+                ;
+                packet.setData(boStream.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(ENCODE_DS_ERR);
+            }
+
+            //Invio il pacchetto
+            try {
+                socket.send(packet);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(SEND_ERR);
+            }
+
+            //Attendo risposta.
+            try {
+                packet.setData(buf, 0, buf.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(RECEIVE_DS_ERR);
+            }
+
+            //Decodifico la risposta.
+            try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
+                //leggo nome file inviato dal client --> risponderò con la corrispettiva porta (se corretto)
+                discoveryResult = diStream.readInt();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(DECODE_DS_ERR);
+            }
+
+            isRegistered = discoveryResult == RESULT_OK;
+        }
+    }
+
+    public void dismissFromDiscovery() {
+        if (isRegistered()) {
+            //Apro una richiesta di cancellazione al discovery.
+
+            try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
+                doStream.writeUTF(CMD_DISMISS + ":" + filename + ":" + addressRS.getHostAddress() + ":" + portRS);
+
+                packet.setAddress(addressDS);
+                packet.setPort(portDS);
+                packet.setData(boStream.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(ENCODE_DS_ERR);
+            }
+
+            //Invio il pacchetto
+            try {
+                socket.send(packet);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(SEND_ERR);
+            }
+
+            //Attendo risposta.
+            try {
+                packet.setData(buf, 0, buf.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(RECEIVE_DS_ERR);
+            }
+
+            //Decodifico la risposta.
+            try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
+                //leggo nome file inviato dal client --> risponderò con la corrispettiva porta (se corretto)
+                discoveryResult = diStream.readInt();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(DECODE_DS_ERR);
+            }
+
+            //Anche se il discovery mi da errore lo interpreto come una cancellazione.
+            isRegistered = !(discoveryResult == RESULT_OK || discoveryResult == RESULT_FILENAME_NOT_IN_USE || discoveryResult == RESULT_PAIR_NOT_CONSISTENT);
+        }
+    }
+
+    //Prepara il server a ricevere (da start(), prima di passare la socket al gruppo).
+    private void startServing() {
+        synchronized (permutationLock) {
+            if (isDeferredMode()) {
+                compactor = group.compactor;
+                //Swap rimasti in attesa dalla riapplicazione del journal.
+                scheduleCompaction();
+            }
+        }
+
+        registerMetrics();
+
+        //Indice appena ricostruito: lo salvo subito, così un riavvio dopo un crash non deve riscandire il file.
+        if (!indexFromSnapshot) {
+            writeIndexSnapshot();
+        }
+
+        if (watchMode) {
+            startWatching();
+        }
+
+        //Il thread del gruppo riceve e smista: decodifica, swap e risposta li fanno i worker.
+        //Con workers == 0 fa tutto lui, una richiesta alla volta.
+        executor = sharedExecutor;
+
+        if (executor == null && workers > 0) {
+            //Coda limitata: se i worker sono tutti occupati e la coda è piena la richiesta la esegue
+            //direttamente il thread che riceve, rallentando la ricezione.
+            executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(workers * WORKER_QUEUE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        //Pool delle richieste: si riceve direttamente nel buffer di una richiesta libera, che torna nel pool
+        //dopo la risposta. Se sono tutte in uso il thread che riceve aspetta che se ne liberi una.
+        int poolSize = Math.max(workers, 1) * REQUESTS_PER_WORKER;
+        freeRequests = new ArrayBlockingQueue<>(poolSize);
+
+        for (int i = 0; i < poolSize; i++) {
+            freeRequests.add(new PooledRequest(freeRequests));
+        }
+    }
+
+    //Riceve i datagrammi pronti sulla socket (dal thread del gruppo, socket non bloccante). Ne prendo al più
+    //RECEIVE_BATCH per giro, così un file molto carico non ferma gli altri.
+    private void receiveReady() {
+        for (int i = 0; i < RECEIVE_BATCH && !closed; i++) {
+            PooledRequest request = spareRequest;
+            spareRequest = null;
+
+            if (request == null) {
+                try {
+                    request = freeRequests.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            //ciclicamente risetto il buffer del pacchetto
+            request.received.clear();
+            SocketAddress sender;
+
+            try {
+                sender = channel.receive(request.received); //prendo una richiesta da un client, se c'è
+            } catch (IOException e) {
+                e.printStackTrace();
+                freeRequests.offer(request);
+                return;
+            }
+
+            if (sender == null) {
+                spareRequest = request;
+                return;
+            }
+
+            request.packet.setData(request.data, 0, request.received.position());
+            request.packet.setSocketAddress(sender);
+            request.receivedNanos = System.nanoTime();
+            metrics.received(request.packet.getLength());
+
+            if (executor == null) {
+                request.handle();
+                freeRequests.offer(request);
+            } else {
+                inFlight.register();
+                executor.execute(request);
+            }
+        }
+    }
+
+    //Arresto del server, a socket già tolta dal Selector (sullo scheduler del gruppo, per non fermare la lettura
+    //degli altri file durante la compattazione finale).
+    private void shutdown() {
+        //Aspetto che i worker finiscano le richieste già accettate per questo file.
+        inFlight.arriveAndAwaitAdvance();
+
+        if (executor != null && executor != sharedExecutor) {
+            executor.shutdown();
+        }
+
+        //Rilascio risorse: la cancellazione dal discovery usa la socket in modo bloccante.
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        dismissFromDiscovery();
+        socket.close();
+
+        if (watchMode) {
+            group.unwatch(this);
+        }
+
+        synchronized (permutationLock) {
+            compactor = null;
+
+            if (scheduledCompaction != null) {
+                scheduledCompaction.cancel(false);
+                scheduledCompaction = null;
+            }
+        }
+
+        if (isDeferredMode()) {
+            //Materializzo quello che è rimasto in sospeso.
+            synchronized (compactionLock) {
+                compact();
+            }
+        }
+
+        writeIndexSnapshot();
+        closeFiles();
+        unregisterMetrics();
+
+        fullyClosed = true;
+        stopped.countDown();
+    }
+
+    //Pubblica le metriche come MXBean, una per porta (un processo può servire più file).
+    private void registerMetrics() {
+        try {
+            metricsName = new ObjectName("com:type=RowSwapServer,port=" + portRS);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            System.err.println("Impossibile registrare le metriche JMX: " + e.getMessage());
+            metricsName = null;
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            System.err.println("Impossibile rimuovere le metriche JMX: " + e.getMessage());
+        }
+
+        metricsName = null;
+    }
+
+    private void closeFiles() {
+        try {
+            if (journalChannel != null) journalChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            if (dataChannel != null) dataChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //Richiesta riusabile: buffer di ricezione e risposta, pacchetto e appoggi per lo swap sono allocati una volta
+    //sola. Gli swap singoli (testo "r1,r2" o frame SWAP) passano dalla via veloce, che a regime non alloca:
+    //numeri letti direttamente dai byte e risposta "OK" già codificata. Il resto va a handleRequest.
+    private final class PooledRequest implements Runnable {
+
+        private final ArrayBlockingQueue<PooledRequest> pool;
+
+        private final byte[] data = new byte[MAX_DATAGRAM_SIZE];
+        private final DatagramPacket packet = new DatagramPacket(data, data.length);
+        private final ByteBuffer in = ByteBuffer.wrap(data);
+        //Buffer in cui riceve il canale (stessi byte di data).
+        private final ByteBuffer received = ByteBuffer.wrap(data);
+
+        private final byte[] reply = new byte[REPLY_BUFFER_SIZE];
+        //Destinatario dell'ultima risposta: lo riuso finchè il client è lo stesso.
+        private InetSocketAddress replyTarget;
+        private final ByteBuffer out = ByteBuffer.wrap(reply);
+
+        private final int[] positions = new int[2];
+        private final int[] sources = new int[2];
+        private final SwapBuffers buffers = new SwapBuffers(2);
+
+        //Posizione di lettura di parseDigits.
+        private int cursor;
+
+        //Istante della ricezione e dell'inizio della fase in corso (System.nanoTime), per le metriche.
+        private long receivedNanos;
+        private long phaseStart;
+
+        private PooledRequest(ArrayBlockingQueue<PooledRequest> pool) {
+            this.pool = pool;
+        }
+
+        //Eseguita dai worker: al termine la richiesta torna nel pool.
+        @Override
+        public void run() {
+            try {
+                handle();
+            } finally {
+                inFlight.arriveAndDeregister();
+                pool.offer(this);
+            }
         }
 
-        try {
-            //sposto il file tmp in quello finale
-            Files.move(tmpPath, filePath, StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            String err = "Impossibile spostare il file temporaneo: " + e.getMessage();
-            System.err.println(err);
-            return err;
-        }
-        //ritorno esito in formato di stringa dello swap
-        return esitoOK;
-    }
+        private void handle() {
+            int length = packet.getLength();
+            InetAddress address = packet.getAddress();
+            int port = packet.getPort();
 
-    public void registerOnDiscovery() {
-        if (!isRegistered()) {
-            //Apro una richiesta di registrazione al discovery.
+            phaseStart = metrics.phase(RowSwapServerMetrics.PHASE_RECEIVE, receivedNanos);
 
-            try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
-                doStream.writeUTF(CMD_REGISTER + ":" + filename + ":" + addressRS.getHostAddress() + ":" + portRS);
+            int replyLength = Protocol.isBinary(data, 0, length) ? handleBinarySwap(length) : handleTextSwap(length, address, port);
 
-                packet.setAddress(addressDS);
-                packet.setPort(portDS)
-                ;
-                packet.setData(boStream.toByteArray());
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(ENCODE_DS_ERR);
+            if (replyLength < 0) {
+                //Non è uno swap singolo ben formato: via generica (nessuno swap è stato ancora eseguito).
+                handleRequest(Arrays.copyOf(data, length), address, port, phaseStart);
+                return;
             }
 
-            //Invio il pacchetto
+            if (replyLength == 0) {
+                return; //risposta già inviata
+            }
+
+            if (replyTarget == null || replyTarget.getPort() != port || !replyTarget.getAddress().equals(address)) {
+                replyTarget = new InetSocketAddress(address, port);
+            }
+
+            out.clear();
+            out.limit(replyLength);
+
+            long start = System.nanoTime();
+
             try {
-                socket.send(packet);
+                //invio la risposta con esito dello swap
+                channel.send(out, replyTarget);
             } catch (IOException e) {
                 e.printStackTrace();
                 System.exit(SEND_ERR);
             }
 
-            //Attendo risposta.
-            try {
-                packet.setData(buf, 0, buf.length);
-                socket.receive(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(RECEIVE_DS_ERR);
+            metrics.phase(RowSwapServerMetrics.PHASE_SEND, start);
+            metrics.sent(replyLength);
+        }
+
+        //Richiesta di testo "[#id#]r1,r2" con sole cifre. Ritorna la lunghezza della risposta in reply,
+        //0 se la risposta è già stata inviata, -1 se la richiesta va gestita da handleRequest.
+        private int handleTextSwap(int length, InetAddress address, int port) {
+            if (length < 2) {
+                return -1;
             }
 
-            //Decodifico la risposta.
-            try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
-                //leggo nome file inviato dal client --> risponderò con la corrispettiva porta (se corretto)
-                discoveryResult = diStream.readInt();
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(DECODE_DS_ERR);
+            int end = 2 + (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+
+            if (end > length) {
+                return -1;
             }
 
-            isRegistered = discoveryResult == RESULT_OK;
+            //Prefisso "#id#" dei client asincroni, da ripetere nella risposta.
+            int tagEnd = 2;
+
+            if (end > 2 && data[2] == '#') {
+                int i = 3;
+                while (i < end && data[i] >= '0' && data[i] <= '9') {
+                    i++;
+                }
+                if (i > 3 && i < end && data[i] == '#') {
+                    tagEnd = i + 1;
+                }
+            }
+
+            cursor = tagEnd;
+            int riga1 = parseDigits(end);
+
+            if (riga1 < 0 || cursor >= end || data[cursor] != ',') {
+                return -1;
+            }
+
+            cursor++;
+            int riga2 = parseDigits(end);
+
+            //Fuori dal file: il messaggio lo costruisce handleRequest.
+            if (riga2 < 0 || cursor != end || riga1 >= fileLineCount || riga2 >= fileLineCount) {
+                return -1;
+            }
+
+            int tagLength = tagEnd - 2;
+
+            if (2 + tagLength + REPLY_OK.length > reply.length) {
+                return -1;
+            }
+
+            metrics.phase(RowSwapServerMetrics.PHASE_DECODE, phaseStart);
+            String err = applySwap(riga1, riga2, positions, sources, buffers);
+
+            if (err != null) {
+                sendReply(new String(data, 2, tagLength, StandardCharsets.US_ASCII) + err, address, port);
+                return 0;
+            }
+
+            int utfLength = tagLength + REPLY_OK.length;
+            reply[0] = (byte) (utfLength >>> 8);
+            reply[1] = (byte) utfLength;
+            System.arraycopy(data, 2, reply, 2, tagLength);
+            System.arraycopy(REPLY_OK, 0, reply, 2 + tagLength, REPLY_OK.length);
+
+            return 2 + utfLength;
         }
-    }
 
-    public void dismissFromDiscovery() {
-        if (isRegistered()) {
-            //Apro una richiesta di cancellazione al discovery.
+        //Numero decimale senza segno da cursor (al massimo Integer.MAX_VALUE), -1 se non ci sono cifre o è troppo grande.
+        private int parseDigits(int end) {
+            int start = cursor;
+            long value = 0;
 
-            try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
-                doStream.writeUTF(CMD_DISMISS + ":" + addressRS.getHostAddress() + ":" + portRS);
+            while (cursor < end && data[cursor] >= '0' && data[cursor] <= '9') {
+                value = value * 10 + (data[cursor] - '0');
+                if (value > Integer.MAX_VALUE) {
+                    return -1;
+                }
+                cursor++;
+            }
 
-                packet.setAddress(addressDS);
-                packet.setPort(portRS);
-                packet.setData(boStream.toByteArray());
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(ENCODE_DS_ERR);
+            return cursor == start ? -1 : (int) value;
+        }
+
+        //Frame SWAP (vedi Protocol). Stessi valori di ritorno di handleTextSwap.
+        private int handleBinarySwap(int length) {
+            in.clear();
+            in.limit(length);
+
+            //Le richieste idempotenti (versione 2) passano dalla cache delle risposte in handleRequest.
+            if (Protocol.getOpcode(in) != Protocol.OP_SWAP || Protocol.getVersion(in) != Protocol.VERSION) {
+                return -1;
             }
 
-            //Invio il pacchetto
+            int requestId = Protocol.getRequestId(in);
+            int riga1;
+            int riga2;
+
+            in.position(Protocol.HEADER_SIZE);
+
             try {
-                socket.send(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(SEND_ERR);
+                riga1 = Protocol.getVarInt(in);
+                riga2 = Protocol.getVarInt(in);
+            } catch (ProtocolException e) {
+                return -1;
             }
 
-            //Attendo risposta.
-            try {
-                packet.setData(buf, 0, buf.length);
-                socket.receive(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(RECEIVE_DS_ERR);
+            out.clear();
+
+            if (riga1 < 0 || riga2 < 0 || riga1 >= fileLineCount || riga2 >= fileLineCount) {
+                metrics.outOfRange();
+                Protocol.putHeader(out, Protocol.OP_SWAP, Protocol.STATUS_OUT_OF_RANGE, requestId);
+                Protocol.putVarInt(out, fileLineCount);
+                return out.position();
             }
 
-            //Decodifico la risposta.
-            try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData()); DataInputStream diStream = new DataInputStream(biStream)) {
-                //leggo nome file inviato dal client --> risponderò con la corrispettiva porta (se corretto)
-                discoveryResult = diStream.readInt();
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(DECODE_DS_ERR);
+            metrics.phase(RowSwapServerMetrics.PHASE_DECODE, phaseStart);
+            String err = applySwap(riga1, riga2, positions, sources, buffers);
+
+            if (err != null) {
+                byte[] message = err.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER_SIZE + Protocol.MAX_VARINT_SIZE + message.length);
+                Protocol.putHeader(frame, Protocol.OP_SWAP, Protocol.STATUS_SERVER_ERROR, requestId);
+                Protocol.putBytes(frame, message);
+                sendReply(frame.array(), frame.position(), packet.getAddress(), packet.getPort());
+                return 0;
             }
 
-            //Anche se il discovery mi da errore lo interpreto come una cancellazione.
-            isRegistered = !(discoveryResult == RESULT_OK || discoveryResult == RESULT_FILENAME_NOT_IN_USE || discoveryResult == RESULT_PAIR_NOT_CONSISTENT);
+            Protocol.putHeader(out, Protocol.OP_SWAP, Protocol.STATUS_OK, requestId);
+            return out.position();
         }
     }
 
-    @Override
-    public void run() {
-        //Devo essere registrato per continuare:
-        if(!isRegistered()){
+    //Decodifica la richiesta, esegue lo swap (singolo o multiplo) e risponde al client con l'esito.
+    //decodeStart (System.nanoTime) è l'inizio della decodifica, per le metriche.
+    private void handleRequest(byte[] data, InetAddress address, int port, long decodeStart) {
+        //Il formato si riconosce dal primo byte: binario (Protocol) oppure stringa writeUTF.
+        if (Protocol.isBinary(data, 0, data.length)) {
+            handleBinaryRequest(data, address, port, decodeStart);
             return;
         }
 
-        //Metodo principale del server:
-        //Cosa fa?
-        //1) REPL dei client
-        //2) In caso di eccezione termina con un errore: se l'errore non è critico rilancio il server con script esterno. (DA IMPLEMENTARE)
+        String richiesta = null;
+        String esito = null;
+        String tag = "";
 
-        //Non deve essere un'istanza già chiusa.
-        //Finchè non chiudo.
-        while (!closed) {
-            String richiesta = null;
-            String esito = null;
+        try (ByteArrayInputStream biStream = new ByteArrayInputStream(data); DataInputStream diStream = new DataInputStream(biStream)){
+            richiesta = diStream.readUTF(); //leggo le due righe separate da virgola
+        } catch (IOException e) {
+            e.printStackTrace();
+            //System.exit(DECODE_CLIENT_ERR);
+            metrics.malformed();
+            esito = "richiesta malformata";
+        }
 
-            //ciclicamente risetto il buffer del pacchetto
-            packet.setData(buf, 0, buf.length);
+        //Richieste dei client asincroni: "#id#richiesta", la risposta riporta lo stesso prefisso.
+        //Con "#clientId:id#" la richiesta è idempotente: una ritrasmissione riceve la risposta già data.
+        long clientId = -1;
+        int requestId = -1;
 
-            try {
-                socket.receive(packet); //attendo una richiesta da un client
-            } catch (SocketTimeoutException e) {
-                //non dovrebbe entrare se non impostato timeout.
-                continue;
-            } catch (IOException e) {
-                e.printStackTrace();
-                esito = "Impossibile ricevere messaggio";
-            }
+        if (esito == null) {
+            tag = richiesta.substring(0, Protocol.requestTagLength(richiesta));
+            richiesta = richiesta.substring(tag.length());
+            clientId = tag.isEmpty() ? -1 : Protocol.getTagClientId(tag);
+            requestId = clientId < 0 ? -1 : Protocol.getTagRequestId(tag);
 
-            try (ByteArrayInputStream biStream = new ByteArrayInputStream(packet.getData(), 0, packet.getLength()); DataInputStream diStream = new DataInputStream(biStream)){
-                richiesta = diStream.readUTF(); //leggo le due righe separate da virgola
-            } catch (IOException e) {
-                e.printStackTrace();
-                //System.exit(DECODE_CLIENT_ERR);
-                esito = "richiesta malformata";
+            if (replayReply(clientId, requestId, address, port)) {
+                return;
             }
+        }
 
+        byte[] reply;
+
+        //Se la gestione fallisce tolgo la voce in esecuzione (vedi handleBinaryRequest).
+        try {
             //Continuo solo la decodifica è andata a buon fine.
-            if(esito == null){
+            if(esito == null && richiesta.equals(CMD_STATS)){
+                esito = metrics.format();
+            } else if(esito == null && richiesta.indexOf(';') >= 0){
+                //Più coppie separate da ';': swap multiplo con un'unica passata sul file.
+                esito = swapBatch(richiesta, decodeStart);
+            } else if(esito == null){
                 StringTokenizer st = new StringTokenizer(richiesta, ","); //splitto per trovare le due righe da scambiare
 
                 try{
                     int riga1 = Integer.parseInt(st.nextToken());
                     int riga2 = Integer.parseInt(st.nextToken());
+                    metrics.phase(RowSwapServerMetrics.PHASE_DECODE, decodeStart);
 
                     //Scambio le righe e ritorno l'esito.
                     esito = swap(riga1, riga2);
 
                 } catch (NumberFormatException | NoSuchElementException e){
+                    metrics.malformed();
                     esito = "righe malformate";
                 }
             }
 
-            try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
-                //rispondo con esito dell'operazione di swap
-                doStream.writeUTF(esito);
-                packet.setData(boStream.toByteArray());
+            reply = encodeReply(tag + esito);
+
+            rememberReply(clientId, requestId, reply);
+        } catch (RuntimeException | Error e) {
+            forgetReply(clientId, requestId);
+            throw e;
+        }
+
+        sendReply(reply, reply.length, address, port);
+    }
+
+    //Invia l'esito al client con un pacchetto proprio: può essere chiamato da più worker insieme.
+    private void sendReply(String esito, InetAddress address, int port) {
+        byte[] data = encodeReply(esito);
+        sendReply(data, data.length, address, port);
+    }
+
+    private static byte[] encodeReply(String esito) {
+        try (ByteArrayOutputStream boStream = new ByteArrayOutputStream(); DataOutputStream doStream = new DataOutputStream(boStream)) {
+            //rispondo con esito dell'operazione di swap
+            doStream.writeUTF(esito);
+            doStream.flush();
+            return boStream.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(ENCODE_CLIENT_ERR);
+            return null;
+        }
+    }
+
+    //La socket è non bloccante (vedi ServerGroup): con il buffer di invio pieno il datagramma si perde,
+    //come qualsiasi datagramma UDP, e il client ritrasmette.
+    private void sendReply(byte[] data, int length, InetAddress address, int port) {
+        long start = System.nanoTime();
+
+        try {
+            //invio la risposta con esito dello swap
+            channel.send(ByteBuffer.wrap(data, 0, length), new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(SEND_ERR);
+        }
+
+        metrics.phase(RowSwapServerMetrics.PHASE_SEND, start);
+        metrics.sent(length);
+    }
+
+    //Thread condivisi dai file serviti dallo stesso processo: un solo thread legge tutte le socket con un Selector
+    //(socket non bloccanti, come il DSReactor del discovery), un solo scheduler compatta gli swap differiti (e
+    //arresta i server chiusi) e un solo WatchService osserva le directory dei file. Ogni file resta sulla sua porta.
+    //Il gruppo termina quando tutti i suoi server sono chiusi.
+    static final class ServerGroup implements Runnable {
+
+        private final Thread readerThread = new Thread(this);
+        private final Selector selector;
+        private final ScheduledThreadPoolExecutor compactor = new ScheduledThreadPoolExecutor(1);
+        //Server passati da add(), registrati nel Selector dal thread che legge.
+        private final ConcurrentLinkedQueue<RowSwapServer> added = new ConcurrentLinkedQueue<>();
+        private final ArrayList<SelectionKey> keys = new ArrayList<>();
+        private final java.util.function.Consumer<SelectionKey> readyAction = key -> ((RowSwapServer) key.attachment()).receiveReady();
+        private boolean started = false;
+        private boolean terminated = false;
+
+        //Osservazione delle directory: una chiave per directory, con i server dei file che contiene.
+        private WatchService watcher = null;
+        private Thread watcherThread = null;
+        private final HashMap<WatchKey, ArrayList<RowSwapServer>> watched = new HashMap<>();
+
+        ServerGroup() {
+            try {
+                this.selector = Selector.open();
             } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(ENCODE_CLIENT_ERR);
+                throw new UncheckedIOException(e);
+            }
+
+            compactor.setRemoveOnCancelPolicy(true);
+        }
+
+        //Aggiunge un server già pronto (vedi start()): la sua socket passa al thread che legge.
+        private synchronized void add(RowSwapServer server) {
+            if (terminated) {
+                throw new IllegalStateException("Gruppo di server già terminato");
+            }
+
+            server.serving = true;
+            added.add(server);
+
+            if (!started) {
+                started = true;
+                readerThread.start();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        private void wakeup() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                registerAdded();
+
+                //Tolgo i server chiusi: la loro socket esce dal Selector e l'arresto lo fa lo scheduler.
+                ArrayList<RowSwapServer> stopping = null;
+
+                for (int i = keys.size() - 1; i >= 0; i--) {
+                    SelectionKey key = keys.get(i);
+                    RowSwapServer server = (RowSwapServer) key.attachment();
+
+                    if (server.closed) {
+                        key.cancel();
+                        keys.remove(i);
+
+                        if (stopping == null) stopping = new ArrayList<>();
+                        stopping.add(server);
+                    }
+                }
+
+                try {
+                    if (stopping != null) {
+                        //Completa la cancellazione delle chiavi, così le socket possono tornare bloccanti.
+                        selector.selectNow(readyAction);
+
+                        for (RowSwapServer server : stopping) {
+                            compactor.execute(server::shutdown);
+                        }
+                    }
+
+                    if (keys.isEmpty() && isIdle()) {
+                        break;
+                    }
+
+                    selector.select(readyAction, 1000);
+                } catch (IOException | ClosedSelectorException e) {
+                    e.printStackTrace();
+                    System.exit(RECEIVE_CLIENT_ERR);
+                }
             }
 
             try {
-                //invio la risposta con esito dello swap
-                socket.send(packet);
+                selector.close();
             } catch (IOException e) {
                 e.printStackTrace();
-                System.exit(SEND_ERR);
             }
 
+            //Gli arresti già passati allo scheduler vengono completati.
+            compactor.shutdown();
+
+            try {
+                compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            stopWatcher();
         }
 
-        //Rilascio risorse
-        dismissFromDiscovery();
-        socket.close();
+        //Registra nel Selector i server aggiunti (dal thread che legge).
+        private void registerAdded() {
+            RowSwapServer server;
+
+            while ((server = added.poll()) != null) {
+                try {
+                    server.channel.configureBlocking(false);
+                    keys.add(server.channel.register(selector, SelectionKey.OP_READ, server));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(SOCKET_ERR);
+                }
+            }
+        }
 
+        //Senza server e senza aggiunte in arrivo il gruppo termina (add() successivi falliscono).
+        private synchronized boolean isIdle() {
+            if (!added.isEmpty()) {
+                return false;
+            }
 
-        fullyClosed = true;
+            terminated = true;
+            return true;
+        }
+
+        //Osserva la directory del file del server (il WatchService e il suo thread nascono con il primo).
+        private synchronized void watch(RowSwapServer server) throws IOException {
+            if (watcher == null) {
+                watcher = server.filePath.getFileSystem().newWatchService();
+                watcherThread = new Thread(this::watchLoop);
+                watcherThread.start();
+            }
+
+            //La stessa directory registrata due volte dà la stessa chiave.
+            WatchKey key = server.filePath.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.computeIfAbsent(key, k -> new ArrayList<>()).add(server);
+        }
+
+        private synchronized void unwatch(RowSwapServer server) {
+            Iterator<Map.Entry<WatchKey, ArrayList<RowSwapServer>>> it = watched.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry<WatchKey, ArrayList<RowSwapServer>> entry = it.next();
+
+                if (entry.getValue().remove(server) && entry.getValue().isEmpty()) {
+                    entry.getKey().cancel();
+                    it.remove();
+                }
+            }
+        }
+
+        //Chiudendo il WatchService il thread esce da take().
+        private void stopWatcher() {
+            Thread thread;
+
+            synchronized (this) {
+                if (watcher == null) {
+                    return;
+                }
+
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                thread = watcherThread;
+            }
+
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //Thread che osserva le directory: gli eventi sugli altri file (temporanei, journal, snapshot) li ignoro.
+        private void watchLoop() {
+            while (true) {
+                WatchKey key;
+
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    break;
+                }
+
+                ArrayList<RowSwapServer> changed = new ArrayList<>();
+
+                synchronized (this) {
+                    ArrayList<RowSwapServer> servers = watched.getOrDefault(key, new ArrayList<>());
+
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        for (RowSwapServer server : servers) {
+                            if ((event.kind() == StandardWatchEventKinds.OVERFLOW || server.filePath.getFileName().equals(event.context()))
+                                    && !changed.contains(server)) {
+                                changed.add(server);
+                            }
+                        }
+                    }
+                }
+
+                key.reset();
+
+                //Fuori dal lock del gruppo: la reindicizzazione aspetta gli swap in corso.
+                for (RowSwapServer server : changed) {
+                    if (!server.closed) {
+                        server.checkExternalChange();
+                    }
+                }
+            }
+        }
     }
 
     public static void main(String[] args) {
-        //RS IPDS portDS portRS nomeFile
+        //RS IPDS portDS portRS nomeFile [nomeFile ...] [-mmap] [-lazy] [-journal] [-commitMs=N] [-commitSwaps=M] [-workers=N] [-noindex] [-watch] [-replyCache=N] [-replyTtlMs=T]
+        //Con più file lo stesso processo li serve tutti: il file i-esimo sulla porta portRS + i,
+        //ciascuno registrato sul DS con il proprio nome, con i worker condivisi e un solo ServerGroup
+        //(un thread per leggere tutte le socket, uno per le compattazioni, uno per le modifiche esterne).
+        final String usage = "RS IPDS portDS portRS nomeFile [nomeFile ...] [-mmap] [-lazy] [-journal] [-commitMs=N] [-commitSwaps=M] [-workers=N] [-noindex] [-watch] [-replyCache=N] [-replyTtlMs=T]";
 
         //controllo che l'utente abbia inserito portaDS e almeno un file e una porta
-        if (args.length != 4) {
-            System.out.println("RS IPDS portDS portRS nomeFile");
+        if (args.length < 4) {
+            System.out.println(usage);
+            System.exit(INV_ERR);
+        }
+
+        //Nomi dei file e opzioni facoltative
+        ArrayList<String> filenames = new ArrayList<>();
+        boolean mappedMode = false;
+        boolean lazyMode = false;
+        boolean journalMode = false;
+        boolean indexSnapshot = true;
+        boolean watchMode = false;
+        int replyCacheSize = DEFAULT_REPLY_CACHE_SIZE;
+        long replyCacheTtlMillis = DEFAULT_REPLY_CACHE_TTL_MILLIS;
+        long commitMillis = DEFAULT_COMMIT_MILLIS;
+        int commitSwaps = DEFAULT_COMMIT_SWAPS;
+        int workers = DEFAULT_WORKERS;
+
+        for (int i = 3; i < args.length; i++) {
+            try {
+                if (!args[i].startsWith("-")) {
+                    filenames.add(args[i]);
+                } else if (args[i].equalsIgnoreCase("-mmap")) {
+                    mappedMode = true;
+                } else if (args[i].equalsIgnoreCase("-lazy")) {
+                    lazyMode = true;
+                } else if (args[i].equalsIgnoreCase("-journal")) {
+                    journalMode = true;
+                } else if (args[i].equalsIgnoreCase("-noindex")) {
+                    indexSnapshot = false;
+                } else if (args[i].equalsIgnoreCase("-watch")) {
+                    watchMode = true;
+                } else if (args[i].toLowerCase().startsWith("-commitms=")) {
+                    commitMillis = Long.parseLong(args[i].substring(args[i].indexOf('=') + 1));
+                } else if (args[i].toLowerCase().startsWith("-commitswaps=")) {
+                    commitSwaps = Integer.parseInt(args[i].substring(args[i].indexOf('=') + 1));
+                } else if (args[i].toLowerCase().startsWith("-workers=")) {
+                    workers = Integer.parseInt(args[i].substring(args[i].indexOf('=') + 1));
+                } else if (args[i].toLowerCase().startsWith("-replycache=")) {
+                    replyCacheSize = Integer.parseInt(args[i].substring(args[i].indexOf('=') + 1));
+                } else if (args[i].toLowerCase().startsWith("-replyttlms=")) {
+                    replyCacheTtlMillis = Long.parseLong(args[i].substring(args[i].indexOf('=') + 1));
+                } else {
+                    System.err.println("Opzione sconosciuta: " + args[i]);
+                    System.out.println(usage);
+                    System.exit(INV_ERR);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Opzione malformata: " + args[i]);
+                System.exit(ARG_ERR);
+            }
+        }
+
+        if (filenames.isEmpty()) {
+            System.out.println(usage);
             System.exit(INV_ERR);
         }
 
+        if (commitMillis <= 0 || commitSwaps <= 0) {
+            System.err.println("commitMs e commitSwaps devono essere positivi");
+            System.exit(ARG_ERR);
+        }
+
+        if (workers < 0) {
+            System.err.println("workers non può essere negativo");
+            System.exit(ARG_ERR);
+        }
+
+        if (replyCacheSize < 0 || replyCacheTtlMillis <= 0) {
+            System.err.println("replyCache non può essere negativo e replyTtlMs deve essere positivo");
+            System.exit(ARG_ERR);
+        }
+
         //Check dell'IP DS.
         InetAddress addressDS = null;
 
@@ -513,57 +3656,105 @@ public class RowSwapServer implements Runnable {
             System.exit(ARG_ERR);
         }
 
-        if (!isPortValid(portRS)) {
+        if (!isPortValid(portRS) || !isPortValid(portRS + filenames.size() - 1)) {
             System.err.println("portRS non valida");
             System.exit(ARG_ERR);
         }
 
-        //Oggetto server.
-        RowSwapServer server = null;
+        //Worker condivisi da tutti i file.
+        ExecutorService executor = null;
 
-        try {
-            server = new RowSwapServer(addressDS, portDS, portRS, args[3]);
-        } catch (SocketException | UnknownHostException e) {
-            System.err.println("Impossibile iniz. socket");
-            System.exit(SOCKET_ERR);
+        if (workers > 0) {
+            executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(workers * WORKER_QUEUE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
         }
 
-        server.checkFileValidity();
-        server.countLines();
+        //Thread condivisi da tutti i file.
+        ServerGroup group = new ServerGroup();
 
-        if (!server.isFileValid()) {
-            System.err.println("Impossibile aprire il r/w il file " + server.getFilename());
-            System.exit(FILE_ERR);
-        }
+        //Oggetti server: un file che non si riesce a servire viene saltato.
+        ArrayList<RowSwapServer> servers = new ArrayList<>();
+
+        for (int i = 0; i < filenames.size(); i++) {
+            RowSwapServer server = null;
 
-        System.out.println("Server inizializzato.");
-        System.out.println("Provo a registrarmi sul DS " + server.getAddressDS().getHostAddress() + ":" + server.getPortDS());
+            try {
+                server = new RowSwapServer(addressDS, portDS, portRS + i, filenames.get(i));
+            } catch (SocketException | UnknownHostException e) {
+                System.err.println("Impossibile iniz. socket per " + filenames.get(i) + " sulla porta " + (portRS + i));
+                continue;
+            }
+
+            server.setMappedMode(mappedMode);
+            server.setWorkers(workers);
+            server.setExecutor(executor);
+            server.setGroup(group);
+            server.setDeferredMode(lazyMode, journalMode, commitMillis, commitSwaps);
+            server.setIndexSnapshotEnabled(indexSnapshot);
+            server.setWatchMode(watchMode);
+            server.setReplyCache(replyCacheSize, replyCacheTtlMillis);
+            server.checkFileValidity();
+            server.countLines();
+            server.initDeferredMode();
+
+            if (!server.isFileValid()) {
+                System.err.println("Impossibile aprire il r/w il file " + server.getFilename());
+                server.close();
+                continue;
+            }
 
-        server.registerOnDiscovery();
+            System.out.println("Server inizializzato: " + server.getFilename());
+            System.out.println("Provo a registrarmi sul DS " + server.getAddressDS().getHostAddress() + ":" + server.getPortDS());
 
-        if (!server.isRegistered()) {
-            System.err.println("Error code: "+server.getDiscoveryResultString());
-            System.exit(REG_ERR);
+            server.registerOnDiscovery();
+
+            if (!server.isRegistered()) {
+                System.err.println("Error code: " + server.getDiscoveryResultString());
+                server.close();
+                continue;
+            }
+
+            //Avvio il server
+            server.start();
+            servers.add(server);
+
+            System.out.println("Server avviato.");
+            System.out.println("IP: " + server.getAddressRS().getHostAddress());
+            System.out.println("Porta: " + server.getPortRS());
+            System.out.println("Nome file: " + server.getFilename());
+            System.out.println("Path: " + server.getFilePath());
+            System.out.println("Numero righe: " + server.getFileLineCount());
+            System.out.println("Indice: " + (!server.isIndexSnapshotEnabled() ? "scansione (senza snapshot)"
+                    : server.isIndexFromSnapshot() ? "da snapshot " + server.getIndexPath() : "scansione"));
+            System.out.println("Modalità mappata: " + (server.isMappedMode() ? "sì" : "no"));
+            System.out.println("Worker: " + server.getWorkers());
+            System.out.println("Swap differiti: " + (server.isDeferredMode() ? "sì" : "no"));
+            System.out.println("Journal: " + (server.isJournalMode() ? server.getJournalPath() : "no"));
+            System.out.println("Modifiche esterne osservate: " + (server.isWatchMode() ? "sì" : "no"));
+            System.out.println("Cache delle risposte: " + (server.getReplyCacheSize() > 0
+                    ? server.getReplyCacheSize() + " voci per " + server.getReplyCacheTtlMillis() + " ms" : "no"));
         }
 
-        //Avvio il server
-        server.start();
+        if (servers.isEmpty()) {
+            System.err.println("Nessun file servito.");
+            System.exit(REG_ERR);
+        }
 
-        System.out.println("Server avviato.");
-        System.out.println("IP: " + server.getAddressRS().getHostAddress());
-        System.out.println("Porta: " + server.getPortRS());
-        System.out.println("Nome file: " + server.getFilename());
-        System.out.println("Path: " + server.getFilePath());
-        System.out.println("Numero righe: " + server.getFileLineCount());
 //        System.out.println("Digita EOF o 'chiudi' per uscire...");
 
         try {
-            server.join();
+            for (RowSwapServer server : servers) {
+                server.join();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
             System.exit(JOIN_ERR);
         }
 
+        if (executor != null) {
+            executor.shutdown();
+        }
+
         //Non si chiude
 
 //        //Se trovo un EOF in System.in lo interpreto come uscita.
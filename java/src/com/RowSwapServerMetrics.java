@@ -0,0 +1,270 @@
+package com;
+
+import java.beans.ConstructorProperties;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Metriche di un RowSwapServer: contatori LongAdder a strisce e un istogramma dei tempi (LatencyHistogram,
+//lock-free) per ciascuna fase di una richiesta. Costano un System.nanoTime per fase e qualche incremento:
+//restano sempre attive. Si leggono con il comando STATS o via JMX (RowSwapServerMetricsMXBean).
+public class RowSwapServerMetrics implements RowSwapServerMetricsMXBean {
+
+    //Fasi di una richiesta:
+    //  RECEIVE  dalla ricezione del datagramma all'inizio della gestione (attesa nella coda dei worker)
+    //  DECODE   decodifica della richiesta fino all'inizio dello swap
+    //  LOCATE   lettura dal file delle righe coinvolte (tramite l'indice degli offset)
+    //  REWRITE  scrittura: scambio sul posto, file temporaneo o, in modalità differita, journal
+    //  MOVE     Files.move del temporaneo sul file servito e riapertura del canale
+    //  SEND     invio della risposta
+    public static final int PHASE_RECEIVE = 0;
+    public static final int PHASE_DECODE = 1;
+    public static final int PHASE_LOCATE = 2;
+    public static final int PHASE_REWRITE = 3;
+    public static final int PHASE_MOVE = 4;
+    public static final int PHASE_SEND = 5;
+
+    private static final String[] PHASE_NAMES = {"receive", "decode", "locate", "rewrite", "move", "send"};
+
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASE_NAMES.length];
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder replies = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder swaps = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder outOfRange = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    private volatile long startMillis = System.currentTimeMillis();
+
+    //Riassunto di una fase per JMX (tempi in microsecondi).
+    public static class PhaseStats {
+
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+        public PhaseStats(long count, double mean, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
+    public RowSwapServerMetrics() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    //Registra la durata di una fase iniziata a startNanos (System.nanoTime) e ritorna l'istante attuale,
+    //così le fasi consecutive si possono concatenare.
+    public long phase(int phase, long startNanos) {
+        long now = System.nanoTime();
+        phases[phase].record(TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+        return now;
+    }
+
+    public void received(int length) {
+        requests.increment();
+        bytesReceived.add(length);
+    }
+
+    public void sent(int length) {
+        replies.increment();
+        bytesSent.add(length);
+    }
+
+    public void swapped(int count) {
+        swaps.add(count);
+    }
+
+    public void batch() {
+        batches.increment();
+    }
+
+    public void outOfRange() {
+        outOfRange.increment();
+    }
+
+    public void malformed() {
+        malformed.increment();
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    //Ritrasmissione di una richiesta idempotente già ricevuta: non è stata rieseguita.
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    public LatencyHistogram getPhase(int phase) {
+        return phases[phase];
+    }
+
+    private PhaseStats phaseStats(int phase) {
+        LatencyHistogram histogram = phases[phase];
+        return new PhaseStats(histogram.getCount(), histogram.getMean(), histogram.getPercentile(50),
+                histogram.getPercentile(99), histogram.getPercentile(99.9), histogram.getMax());
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getReplies() {
+        return replies.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getSwaps() {
+        return swaps.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getOutOfRange() {
+        return outOfRange.sum();
+    }
+
+    @Override
+    public long getMalformed() {
+        return malformed.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+    @Override
+    public PhaseStats getReceive() {
+        return phaseStats(PHASE_RECEIVE);
+    }
+
+    @Override
+    public PhaseStats getDecode() {
+        return phaseStats(PHASE_DECODE);
+    }
+
+    @Override
+    public PhaseStats getLocate() {
+        return phaseStats(PHASE_LOCATE);
+    }
+
+    @Override
+    public PhaseStats getRewrite() {
+        return phaseStats(PHASE_REWRITE);
+    }
+
+    @Override
+    public PhaseStats getMove() {
+        return phaseStats(PHASE_MOVE);
+    }
+
+    @Override
+    public PhaseStats getSend() {
+        return phaseStats(PHASE_SEND);
+    }
+
+    //Azzera contatori e istogrammi (le misure in corso possono finire in parte prima e in parte dopo).
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : phases) {
+            histogram.reset();
+        }
+
+        requests.reset();
+        bytesReceived.reset();
+        replies.reset();
+        bytesSent.reset();
+        swaps.reset();
+        batches.reset();
+        outOfRange.reset();
+        malformed.reset();
+        errors.reset();
+        duplicates.reset();
+        startMillis = System.currentTimeMillis();
+    }
+
+    //Testo della risposta a STATS: una riga di contatori e una per fase, tempi in microsecondi.
+    public String format() {
+        StringBuilder text = new StringBuilder();
+
+        text.append(String.format(Locale.ROOT,
+                "uptimeMs=%d requests=%d bytesIn=%d replies=%d bytesOut=%d swaps=%d batches=%d outOfRange=%d malformed=%d errors=%d duplicates=%d%n",
+                getUptimeMillis(), getRequests(), getBytesReceived(), getReplies(), getBytesSent(), getSwaps(), getBatches(),
+                getOutOfRange(), getMalformed(), getErrors(), getDuplicates()));
+
+        for (int i = 0; i < phases.length; i++) {
+            PhaseStats stats = phaseStats(i);
+            text.append(String.format(Locale.ROOT, "%s count=%d meanUs=%.1f p50Us=%d p99Us=%d p999Us=%d maxUs=%d%n",
+                    PHASE_NAMES[i], stats.getCount(), stats.getMean(), stats.getP50(), stats.getP99(), stats.getP999(), stats.getMax()));
+        }
+
+        return text.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package com;
+
+//Vista JMX delle metriche di un RowSwapServer, registrata come "com:type=RowSwapServer,port=<portRS>".
+//Tempi delle fasi in microsecondi.
+public interface RowSwapServerMetricsMXBean {
+
+    long getRequests();
+
+    long getBytesReceived();
+
+    long getReplies();
+
+    long getBytesSent();
+
+    long getSwaps();
+
+    long getBatches();
+
+    long getOutOfRange();
+
+    long getMalformed();
+
+    long getErrors();
+
+    long getDuplicates();
+
+    long getUptimeMillis();
+
+    RowSwapServerMetrics.PhaseStats getReceive();
+
+    RowSwapServerMetrics.PhaseStats getDecode();
+
+    RowSwapServerMetrics.PhaseStats getLocate();
+
+    RowSwapServerMetrics.PhaseStats getRewrite();
+
+    RowSwapServerMetrics.PhaseStats getMove();
+
+    RowSwapServerMetrics.PhaseStats getSend();
+
+    void reset();
+}
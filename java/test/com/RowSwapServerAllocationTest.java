@@ -0,0 +1,164 @@
+package com;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Via veloce di RowSwapServer: a regime ricezione, decodifica, swap sul posto e risposta non allocano.
+//Con workers == 0 tutto gira sul thread del server, di cui si leggono i byte allocati (ThreadMXBean).
+class RowSwapServerAllocationTest {
+
+    private static final int LINES = 1000;
+    private static final int WARMUP_SWAPS = 30000;
+    private static final int MEASURED_SWAPS = 10000;
+    //Margine per allocazioni sporadiche della JVM (es. ricompilazioni) durante la misura.
+    private static final long MAX_BYTES_PER_SWAP = 1;
+
+    @TempDir
+    static Path dir;
+
+    private static DiscoveryServer discovery;
+    private static RowSwapServer server;
+    private static DatagramSocket client;
+    private static InetAddress loopback;
+    private static Path file;
+    //Contenuto atteso del file: ogni swap confermato viene ripetuto qui.
+    private static List<String> expected;
+
+    @BeforeAll
+    static void startServers() throws IOException {
+        loopback = InetAddress.getLoopbackAddress();
+
+        //Righe tutte della stessa lunghezza: gli swap avvengono sul posto.
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < LINES; i++) {
+            lines.add(String.format("riga%05d", i));
+        }
+        file = Files.write(dir.resolve("alloc.txt"), lines);
+        expected = new ArrayList<>(lines);
+
+        int clientPort = freePort();
+        int rowSwapPort = freePort();
+        discovery = new DiscoveryServer(clientPort, rowSwapPort);
+        discovery.start();
+
+        server = new RowSwapServer(loopback, rowSwapPort, loopback, freePort(), file.toString());
+        server.setWorkers(0);
+        server.setIndexSnapshotEnabled(false);
+        server.checkFileValidity();
+        server.countLines();
+        server.registerOnDiscovery();
+        assertTrue(server.isRegistered());
+        server.start();
+
+        client = new DatagramSocket();
+        client.setSoTimeout(5000);
+    }
+
+    @AfterAll
+    static void stopServers() throws InterruptedException {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+            server.join(10000);
+        }
+        if (discovery != null) {
+            discovery.close();
+            discovery.join();
+        }
+    }
+
+    @Test
+    void binarySwapDoesNotAllocate() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER_SIZE + 2 * Protocol.MAX_VARINT_SIZE);
+
+        assertAllocationFree(i -> {
+            frame.clear();
+            Protocol.putHeader(frame, Protocol.OP_SWAP, Protocol.STATUS_OK, i);
+            Protocol.putVarInt(frame, first(i));
+            Protocol.putVarInt(frame, second(i));
+            return new DatagramPacket(frame.array(), frame.position(), loopback, server.getPortRS());
+        }, reply -> Protocol.getStatus(ByteBuffer.wrap(reply.getData(), 0, reply.getLength())) == Protocol.STATUS_OK);
+    }
+
+    @Test
+    void textSwapDoesNotAllocate() throws IOException {
+        assertAllocationFree(i -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(first(i) + "," + second(i));
+            return new DatagramPacket(bytes.toByteArray(), bytes.size(), loopback, server.getPortRS());
+        }, reply -> reply.getLength() == 4 && reply.getData()[2] == 'O' && reply.getData()[3] == 'K');
+    }
+
+    private interface RequestFactory {
+        DatagramPacket request(int i) throws IOException;
+    }
+
+    private interface ReplyCheck {
+        boolean ok(DatagramPacket reply);
+    }
+
+    //Le righe scambiate dalla richiesta i-esima.
+    private static int first(int i) {
+        return i % LINES;
+    }
+
+    private static int second(int i) {
+        return (i * 7 + 1) % LINES;
+    }
+
+    private static void assertAllocationFree(RequestFactory requests, ReplyCheck check) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long serverThread = server.getThread().getId();
+
+        exchange(requests, check, 0, WARMUP_SWAPS);
+        long before = threads.getThreadAllocatedBytes(serverThread);
+        exchange(requests, check, WARMUP_SWAPS, MEASURED_SWAPS);
+        long allocated = threads.getThreadAllocatedBytes(serverThread) - before;
+
+        assertTrue(allocated <= MAX_BYTES_PER_SWAP * MEASURED_SWAPS,
+                "Allocati " + allocated + " byte per " + MEASURED_SWAPS + " swap");
+        //Una via veloce che risponde OK senza scambiare non deve passare.
+        assertEquals(expected, Files.readAllLines(file));
+    }
+
+    private static void exchange(RequestFactory requests, ReplyCheck check, int first, int count) throws IOException {
+        DatagramPacket reply = new DatagramPacket(new byte[256], 256);
+
+        for (int i = first; i < first + count; i++) {
+            client.send(requests.request(i));
+            reply.setData(new byte[256]);
+            client.receive(reply);
+            assertTrue(check.ok(reply), "Risposta inattesa allo swap " + i);
+            Collections.swap(expected, first(i), second(i));
+        }
+
+        assertEquals(LINES, server.getFileLineCount());
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+//Indicizzazione a blocchi in parallelo: le righe contate e i loro offset devono essere quelli di
+//BufferedReader anche quando un terminatore cade a cavallo di due blocchi.
+class RowSwapServerCountLinesTest {
+
+    //Come INDEX_CHUNK_SIZE in RowSwapServer.
+    private static final int CHUNK = 1 << 22;
+
+    @TempDir
+    static Path dir;
+
+    private static DiscoveryServer discovery;
+    private static int rowSwapPort;
+    private static InetAddress loopback;
+    private static byte[] content;
+    private static List<String> lines;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        loopback = InetAddress.getLoopbackAddress();
+        rowSwapPort = freePort();
+        discovery = new DiscoveryServer(freePort(), rowSwapPort);
+        discovery.start();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 * CHUNK);
+        //1° confine: "\r\n" diviso tra i due blocchi.
+        fill(out, CHUNK - 1, "\r\n", "bordo1");
+        write(out, "\r\n");
+        //2° confine: il blocco successivo inizia con '\n', ma il precedente non finisce con '\r'.
+        fill(out, 2 * CHUNK, "\r", "bordo2");
+        write(out, "\n");
+        //3° confine: '\r' come ultimo byte del blocco, poi una riga vuota chiusa da "\r\n".
+        fill(out, 3 * CHUNK - 1, "\n", "bordo3");
+        write(out, "\r\r\n");
+        //Fine file sull'ultimo byte del blocco, con l'ultima riga vuota.
+        fill(out, 4 * CHUNK - 2, "\r\n", "bordo4");
+        write(out, "\n\n");
+        content = out.toByteArray();
+        assertEquals(4 * CHUNK, content.length);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.US_ASCII))) {
+            lines = reader.lines().collect(Collectors.toList());
+        }
+        assertEquals("", lines.get(lines.size() - 1));
+    }
+
+    @AfterAll
+    static void stopDiscovery() throws InterruptedException {
+        if (discovery != null) {
+            discovery.close();
+            discovery.join();
+        }
+    }
+
+    @Test
+    void chunkBoundariesWithChannel() throws Exception {
+        check("channel.txt", false);
+    }
+
+    @Test
+    void chunkBoundariesWithMapping() throws Exception {
+        check("mapped.txt", true);
+    }
+
+    private static void check(String name, boolean mapped) throws Exception {
+        Path file = dir.resolve(name);
+        Files.write(file, content);
+
+        RowSwapServer server = new RowSwapServer(loopback, rowSwapPort, loopback, freePort(), file.toString());
+        server.setWorkers(0);
+        server.setMappedMode(mapped);
+        server.setIndexSnapshotEnabled(false);
+        server.checkFileValidity();
+        server.countLines();
+        assertEquals(lines.size(), server.getFileLineCount());
+
+        server.registerOnDiscovery();
+        assertTrue(server.isRegistered());
+        server.start();
+
+        //Scambio le righe ai lati di ogni confine: se un offset è sbagliato il contenuto non torna.
+        List<String> expected = new ArrayList<>(lines);
+        int last = expected.size() - 1;
+
+        try {
+            for (int k = 1; k <= 4; k++) {
+                int i = indexOf(expected, "bordo" + k);
+                assertEquals("OK", server.swap(i, i + 1));
+                Collections.swap(expected, i, i + 1);
+                assertEquals("OK", server.swap(i, last - k));
+                Collections.swap(expected, i, last - k);
+            }
+            assertEquals("OK", server.swap(0, last));
+            Collections.swap(expected, 0, last);
+        } finally {
+            server.close();
+            server.join(30000);
+        }
+
+        assertTrue(server.isFullyClosed());
+        assertEquals(expected, Files.readAllLines(file, StandardCharsets.US_ASCII));
+    }
+
+    private static int indexOf(List<String> lines, String prefix) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith(prefix)) {
+                return i;
+            }
+        }
+        return fail("Riga " + prefix + " non trovata");
+    }
+
+    //Righe di lunghezza variabile chiuse da terminator fino a target - 100 byte, poi una riga che inizia
+    //con marker e arriva esattamente a target (senza terminatore).
+    private static void fill(ByteArrayOutputStream out, int target, String terminator, String marker) {
+        for (int i = 0; target - out.size() > 100; i++) {
+            write(out, "riga " + i + "-".repeat(i % 60) + terminator);
+        }
+        write(out, marker + "y".repeat(target - out.size() - marker.length()));
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Snapshot dell'indice: riusato solo se il file è quello indicizzato, altrimenti il file va riscandito
+//(dimensione, mtime, checksum a campione e CRC dello snapshot stesso).
+class RowSwapServerIndexSnapshotTest {
+
+    private static final int LINES = 50;
+
+    @TempDir
+    static Path dir;
+
+    private static DiscoveryServer discovery;
+    private static int rowSwapPort;
+    private static InetAddress loopback;
+
+    @BeforeAll
+    static void startDiscovery() throws IOException {
+        loopback = InetAddress.getLoopbackAddress();
+        rowSwapPort = freePort();
+        discovery = new DiscoveryServer(freePort(), rowSwapPort);
+        discovery.start();
+    }
+
+    @AfterAll
+    static void stopDiscovery() throws InterruptedException {
+        if (discovery != null) {
+            discovery.close();
+            discovery.join();
+        }
+    }
+
+    @Test
+    void unchangedFileUsesSnapshot() throws Exception {
+        Path file = snapshotFile("unchanged.txt");
+        List<String> expected = lines();
+
+        RowSwapServer server = create(file);
+        assertTrue(server.isIndexFromSnapshot());
+        assertEquals(LINES, server.getFileLineCount());
+
+        //Gli offset caricati devono essere quelli giusti.
+        server.registerOnDiscovery();
+        assertTrue(server.isRegistered());
+        server.start();
+
+        try {
+            assertEquals("OK", server.swap(0, LINES - 1));
+            assertEquals("OK", server.swap(7, 8));
+        } finally {
+            stop(server);
+        }
+
+        Collections.swap(expected, 0, LINES - 1);
+        Collections.swap(expected, 7, 8);
+        assertEquals(expected, Files.readAllLines(file));
+    }
+
+    @Test
+    void sameSizeChangeIsCaughtByChecksum() throws Exception {
+        Path file = snapshotFile("checksum.txt");
+        FileTime mtime = Files.getLastModifiedTime(file);
+
+        //Stessa dimensione e stesso mtime, ma un carattere diventa un terminatore: una riga in più.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}), 2);
+        }
+        Files.setLastModifiedTime(file, mtime);
+
+        assertRescanned(file, LINES + 1);
+    }
+
+    @Test
+    void appendIsCaughtBySize() throws Exception {
+        Path file = snapshotFile("size.txt");
+
+        Files.write(file, "altra\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+        assertRescanned(file, LINES + 1);
+    }
+
+    @Test
+    void touchIsCaughtByMtime() throws Exception {
+        Path file = snapshotFile("mtime.txt");
+        long mtime = Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+
+        Files.setLastModifiedTime(file, FileTime.from(mtime + TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS));
+
+        assertRescanned(file, LINES);
+    }
+
+    @Test
+    void corruptedSnapshotIsRejected() throws Exception {
+        Path file = snapshotFile("corrupted.txt");
+        Path index = file.resolveSibling(file.getFileName() + ".index");
+
+        //Altero un byte degli offset (prima del CRC finale).
+        byte[] bytes = Files.readAllBytes(index);
+        bytes[bytes.length - 9] ^= 0x01;
+        Files.write(index, bytes);
+
+        assertRescanned(file, LINES);
+    }
+
+    //Crea il file, lo serve e lo chiude: lo snapshot viene scritto.
+    private static Path snapshotFile(String name) throws Exception {
+        Path file = dir.resolve(name);
+        Files.write(file, lines());
+
+        RowSwapServer server = create(file);
+        assertFalse(server.isIndexFromSnapshot());
+        server.registerOnDiscovery();
+        assertTrue(server.isRegistered());
+        server.start();
+        stop(server);
+
+        assertTrue(Files.exists(server.getIndexPath()));
+        return file;
+    }
+
+    private static void assertRescanned(Path file, int lines) throws InterruptedException, IOException {
+        RowSwapServer server = create(file);
+
+        try {
+            assertFalse(server.isIndexFromSnapshot());
+            assertEquals(lines, server.getFileLineCount());
+        } finally {
+            server.close();
+            server.join(10000);
+        }
+    }
+
+    private static RowSwapServer create(Path file) throws IOException {
+        RowSwapServer server = new RowSwapServer(loopback, rowSwapPort, loopback, freePort(), file.toString());
+        server.setWorkers(0);
+        server.checkFileValidity();
+        server.countLines();
+        assertTrue(server.isFileValid());
+        return server;
+    }
+
+    private static void stop(RowSwapServer server) throws InterruptedException {
+        server.close();
+        server.join(10000);
+        assertTrue(server.isFullyClosed());
+    }
+
+    private static List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < LINES; i++) {
+            lines.add("riga " + i + "-".repeat(i % 5));
+        }
+        return lines;
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
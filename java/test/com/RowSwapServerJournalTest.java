@@ -0,0 +1,227 @@
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Recupero dopo un crash con il journal: initDeferredMode() deve completare la compattazione interrotta
+//(checkpoint scritto, file aggiornato in parte o del tutto, journal non ancora accorciato) e riapplicare
+//solo le voci successive. Ogni caso viene provato con e senza mappatura.
+class RowSwapServerJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void crashAfterInPlaceWriteBeforeTruncate() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            //Il file ha già le righe del checkpoint, il journal contiene ancora lo swap.
+            Path file = file("scritto" + mapped, "bb", "aa", "cc", "dd");
+            writeJournal(file, 0, 0, 1);
+            writeInPlaceCheckpoint(file, 1, 0, "bb", 3, "aa");
+
+            recover(file, mapped);
+
+            assertRecovered(file, 1, "bb", "aa", "cc", "dd");
+        }
+    }
+
+    @Test
+    void crashAfterCheckpointBeforeWrite() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            //Il file è ancora quello di partenza; la seconda voce del journal è successiva al checkpoint.
+            Path file = file("intatto" + mapped, "aa", "bb", "cc", "dd");
+            writeJournal(file, 0, 0, 1, 2, 3);
+            writeInPlaceCheckpoint(file, 1, 0, "bb", 3, "aa");
+
+            recover(file, mapped);
+
+            assertRecovered(file, 2, "bb", "aa", "dd", "cc");
+        }
+    }
+
+    @Test
+    void checkpointAlreadyCoveredByJournal() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            //Il journal è già stato accorciato: il checkpoint rimasto non va riapplicato.
+            Path file = file("superato" + mapped, "bb", "aa", "cc", "dd");
+            writeJournal(file, 1, 2, 3);
+            writeInPlaceCheckpoint(file, 1, 0, "xx", 3, "yy");
+
+            recover(file, mapped);
+
+            assertRecovered(file, 2, "bb", "aa", "dd", "cc");
+        }
+    }
+
+    @Test
+    void crashBeforeRename() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            Path file = file("prima" + mapped, "a", "bbb", "cc");
+            Path rewrite = rewritePath(file);
+            Files.write(rewrite, Arrays.asList("bbb", "a", "cc"));
+            writeJournal(file, 0, 0, 1);
+            writeRenameCheckpoint(file, 1, rewrite.getFileName().toString());
+
+            recover(file, mapped);
+
+            assertRecovered(file, 1, "bbb", "a", "cc");
+            assertFalse(Files.exists(rewrite));
+        }
+    }
+
+    @Test
+    void crashAfterRename() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            Path file = file("dopo" + mapped, "bbb", "a", "cc");
+            writeJournal(file, 0, 0, 1);
+            writeRenameCheckpoint(file, 1, rewritePath(file).getFileName().toString());
+
+            recover(file, mapped);
+
+            assertRecovered(file, 1, "bbb", "a", "cc");
+        }
+    }
+
+    @Test
+    void orphanRewriteIsDeleted() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            //Riscrittura interrotta prima del checkpoint: il temporaneo non vale nulla.
+            Path file = file("orfano" + mapped, "a", "bbb");
+            Path rewrite = rewritePath(file);
+            Files.write(rewrite, Arrays.asList("meta"));
+
+            recover(file, mapped);
+
+            assertRecovered(file, 0, "a", "bbb");
+            assertFalse(Files.exists(rewrite));
+        }
+    }
+
+    @Test
+    void swapsSurviveRestart() throws Exception {
+        for (boolean mapped : new boolean[]{false, true}) {
+            Path file = file("riavvio" + mapped, "a", "bbb", "cc", "dd");
+
+            RowSwapServer server = open(file, mapped);
+            assertEquals("OK", server.swap(0, 1));
+            assertEquals("OK", server.swap(2, 3));
+            server.close();
+
+            recover(file, mapped);
+            assertRecovered(file, 2, "bbb", "a", "dd", "cc");
+
+            //Un secondo recupero non deve riapplicare nulla.
+            recover(file, mapped);
+            assertRecovered(file, 2, "bbb", "a", "dd", "cc");
+        }
+    }
+
+    private Path file(String name, String... lines) throws IOException {
+        Path file = dir.resolve(name + ".txt");
+        Files.write(file, Arrays.asList(lines));
+        return file;
+    }
+
+    private static Path sibling(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    private static Path rewritePath(Path file) {
+        return sibling(file, ".rewrite.tmp");
+    }
+
+    //Journal con la sequenza base della prima voce e le voci (coppie di righe) indicate.
+    private static void writeJournal(Path file, long base, int... lines) throws IOException {
+        ByteBuffer journal = ByteBuffer.allocate(RowSwapServer.JOURNAL_HEADER_SIZE + Integer.BYTES * lines.length);
+        journal.putInt(RowSwapServer.JOURNAL_MAGIC).putInt(RowSwapServer.JOURNAL_VERSION).putLong(base);
+        for (int line : lines) {
+            journal.putInt(line);
+        }
+        Files.write(sibling(file, ".journal"), journal.array());
+    }
+
+    //Checkpoint sul posto: coppie (offset, contenuto) da scrivere nel file.
+    private static void writeInPlaceCheckpoint(Path file, long upTo, Object... writes) throws IOException {
+        writeCheckpoint(file, upTo, data -> {
+            data.writeByte(RowSwapServer.CHECKPOINT_IN_PLACE);
+            data.writeInt(writes.length / 2);
+            for (int i = 0; i < writes.length; i += 2) {
+                byte[] bytes = ((String) writes[i + 1]).getBytes(StandardCharsets.US_ASCII);
+                data.writeLong((Integer) writes[i]);
+                data.writeInt(bytes.length);
+                data.write(bytes);
+            }
+        });
+    }
+
+    private static void writeRenameCheckpoint(Path file, long upTo, String tmpName) throws IOException {
+        writeCheckpoint(file, upTo, data -> {
+            data.writeByte(RowSwapServer.CHECKPOINT_RENAME);
+            data.writeUTF(tmpName);
+        });
+    }
+
+    private interface Body {
+        void write(DataOutputStream data) throws IOException;
+    }
+
+    private static void writeCheckpoint(Path file, long upTo, Body body) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+
+        data.writeInt(RowSwapServer.CHECKPOINT_MAGIC);
+        data.writeLong(upTo);
+        body.write(data);
+        data.flush();
+        data.writeLong(crc.getValue());
+        data.flush();
+
+        Files.write(sibling(file, ".checkpoint"), bytes.toByteArray());
+    }
+
+    private static RowSwapServer open(Path file, boolean mapped) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        RowSwapServer server = new RowSwapServer(loopback, 0, loopback, 0, file.toString());
+        server.setMappedMode(mapped);
+        server.setDeferredMode(false, true, Long.MAX_VALUE, Integer.MAX_VALUE);
+        server.setIndexSnapshotEnabled(false);
+        server.checkFileValidity();
+        server.countLines();
+        server.initDeferredMode();
+        assertTrue(server.isFileValid());
+        return server;
+    }
+
+    private static void recover(Path file, boolean mapped) throws IOException {
+        open(file, mapped).close();
+    }
+
+    //File con le righe attese, journal vuoto che riparte da base, nessun checkpoint rimasto.
+    private static void assertRecovered(Path file, long base, String... lines) throws IOException {
+        assertEquals(Arrays.asList(lines), Files.readAllLines(file));
+
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(sibling(file, ".journal")));
+        assertEquals(RowSwapServer.JOURNAL_HEADER_SIZE, journal.capacity());
+        assertEquals(RowSwapServer.JOURNAL_MAGIC, journal.getInt(0));
+        assertEquals(base, journal.getLong(8));
+
+        assertFalse(Files.exists(sibling(file, ".checkpoint")));
+    }
+}
@@ -0,0 +1,172 @@
+package com;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Swap differiti: la permutazione logica, materializzata dalle compattazioni mentre arrivano altri swap,
+//deve portare il file esattamente nello stato atteso; oltre OFF_HEAP_PERMUTATION_LINES righe sta fuori dallo heap.
+class RowSwapServerPermutationTest {
+
+    private static final long WAIT_MILLIS = 10000;
+
+    @TempDir
+    static Path dir;
+
+    private static DiscoveryServer discovery;
+    private static int rowSwapPort;
+    private static InetAddress loopback;
+
+    @BeforeAll
+    static void startDiscovery() throws IOException {
+        loopback = InetAddress.getLoopbackAddress();
+        rowSwapPort = freePort();
+        discovery = new DiscoveryServer(freePort(), rowSwapPort);
+        discovery.start();
+    }
+
+    @AfterAll
+    static void stopDiscovery() throws InterruptedException {
+        if (discovery != null) {
+            discovery.close();
+            discovery.join();
+        }
+    }
+
+    @Test
+    void lazyCompactionsMatchModel() throws Exception {
+        randomSwaps("lazy.txt", true, false);
+    }
+
+    @Test
+    void journalCompactionsMatchModel() throws Exception {
+        randomSwaps("journal.txt", false, true);
+    }
+
+    @Test
+    void permutationGoesOffHeapAboveThreshold() throws Exception {
+        assertFalse(offHeap("soglia.txt", RowSwapServer.OFF_HEAP_PERMUTATION_LINES));
+        assertTrue(offHeap("oltre.txt", RowSwapServer.OFF_HEAP_PERMUTATION_LINES + 1));
+    }
+
+    //Swap casuali con compattazioni frequenti (ogni 7 swap o 5 ms): a metà, finita una compattazione,
+    //il file deve già coincidere con il modello; alla chiusura anche gli ultimi swap sono scritti.
+    private static void randomSwaps(String name, boolean lazy, boolean journal) throws Exception {
+        Path file = dir.resolve(name);
+        List<String> model = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            model.add("riga " + i + "*".repeat(i % 17));
+        }
+        Files.write(file, model);
+
+        RowSwapServer server = start(file, lazy, journal);
+        Random random = new Random(7);
+
+        try {
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < 500; i++) {
+                    int a = random.nextInt(model.size());
+                    int b = random.nextInt(model.size());
+                    assertEquals("OK", server.swap(a, b));
+                    Collections.swap(model, a, b);
+                }
+
+                awaitContent(file, model);
+            }
+
+            for (int i = 0; i < 33; i++) {
+                int a = random.nextInt(model.size());
+                int b = random.nextInt(model.size());
+                assertEquals("OK", server.swap(a, b));
+                Collections.swap(model, a, b);
+            }
+        } finally {
+            stop(server);
+        }
+
+        assertEquals(model, Files.readAllLines(file));
+    }
+
+    //Ritorna se la permutazione di un file di lines righe sta fuori dallo heap, dopo averci fatto due swap.
+    private static boolean offHeap(String name, int lines) throws Exception {
+        Path file = dir.resolve(name);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            content.append(i).append('\n');
+        }
+        Files.writeString(file, content);
+
+        RowSwapServer server = start(file, true, false);
+        boolean offHeap;
+
+        try {
+            assertEquals(lines, server.getFileLineCount());
+            offHeap = server.isPermutationOffHeap();
+            assertEquals("OK", server.swap(0, lines - 1));
+            assertEquals("OK", server.swap(1, lines - 2));
+        } finally {
+            stop(server);
+        }
+
+        List<String> result = Files.readAllLines(file);
+        assertEquals(lines, result.size());
+        assertEquals(String.valueOf(lines - 1), result.get(0));
+        assertEquals(String.valueOf(lines - 2), result.get(1));
+        assertEquals("1", result.get(lines - 2));
+        assertEquals("0", result.get(lines - 1));
+        Files.delete(file);
+        return offHeap;
+    }
+
+    private static RowSwapServer start(Path file, boolean lazy, boolean journal) throws IOException {
+        RowSwapServer server = new RowSwapServer(loopback, rowSwapPort, loopback, freePort(), file.toString());
+        server.setWorkers(0);
+        server.setIndexSnapshotEnabled(false);
+        server.setDeferredMode(lazy, journal, 5, 7);
+        server.checkFileValidity();
+        server.countLines();
+        server.initDeferredMode();
+        assertTrue(server.isFileValid());
+        server.registerOnDiscovery();
+        assertTrue(server.isRegistered());
+        server.start();
+        return server;
+    }
+
+    private static void stop(RowSwapServer server) throws InterruptedException {
+        server.close();
+        server.join(WAIT_MILLIS);
+        assertTrue(server.isFullyClosed());
+    }
+
+    private static void awaitContent(Path file, List<String> expected) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+
+        while (!expected.equals(Files.readAllLines(file)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(expected, Files.readAllLines(file));
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Modifiche esterne (watchMode): il server reindicizza la coda se il file è stato allungato, tutto il file
+//altrimenti, scartando gli swap differiti non ancora scritti.
+class RowSwapServerReindexTest {
+
+    private static final long WAIT_MILLIS = 10000;
+
+    @TempDir
+    static Path dir;
+
+    private static DiscoveryServer discovery;
+    private static int rowSwapPort;
+    private static InetAddress loopback;
+
+    @BeforeAll
+    static void startDiscovery() throws IOException {
+        loopback = InetAddress.getLoopbackAddress();
+        rowSwapPort = freePort();
+        discovery = new DiscoveryServer(freePort(), rowSwapPort);
+        discovery.start();
+    }
+
+    @AfterAll
+    static void stopDiscovery() throws InterruptedException {
+        if (discovery != null) {
+            discovery.close();
+            discovery.join();
+        }
+    }
+
+    @Test
+    void appendIsReindexedFromTheTail() throws Exception {
+        //L'ultima riga è senza terminatore: l'append la completa.
+        Path file = dir.resolve("append.txt");
+        Files.write(file, "a\nbbb\ncc\nd".getBytes(StandardCharsets.US_ASCII));
+        RowSwapServer server = start(file, false);
+
+        try {
+            assertEquals("OK", server.swap(0, 1));
+
+            Files.write(file, "dd\neeee\nf\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            awaitLineCount(server, 6);
+
+            assertEquals("OK", server.swap(3, 5));
+            assertEquals("OK", server.swap(0, 4));
+        } finally {
+            stop(server);
+        }
+
+        assertEquals(Arrays.asList("eeee", "a", "cc", "f", "bbb", "ddd"), Files.readAllLines(file));
+    }
+
+    @Test
+    void truncateIsFullyReindexed() throws Exception {
+        Path file = dir.resolve("truncate.txt");
+        Files.write(file, lines("riga", 10));
+        RowSwapServer server = start(file, false);
+
+        try {
+            assertEquals("OK", server.swap(0, 9));
+
+            List<String> replaced = Arrays.asList("uno", "due due", "tre", "quattro");
+            Files.write(file, replaced);
+            awaitLineCount(server, 4);
+
+            //Le righe oltre la nuova fine non si scambiano più.
+            assertNotEquals("OK", server.swap(1, 8));
+            assertEquals("OK", server.swap(0, 3));
+        } finally {
+            stop(server);
+        }
+
+        assertEquals(Arrays.asList("quattro", "due due", "tre", "uno"), Files.readAllLines(file));
+    }
+
+    @Test
+    void fullReindexDiscardsPendingSwaps() throws Exception {
+        Path file = dir.resolve("pending.txt");
+        List<String> original = lines("riga", 8);
+        Files.write(file, original);
+        //Con il journal e commitMs alto gli swap restano in attesa fino alla chiusura.
+        RowSwapServer server = start(file, true);
+        List<String> replaced = lines("nuova", 5);
+
+        try {
+            assertEquals("OK", server.swap(0, 1));
+            assertEquals("OK", server.swap(2, 7));
+            assertEquals(original, Files.readAllLines(file));
+
+            Files.write(file, replaced);
+            awaitLineCount(server, 5);
+
+            assertEquals("OK", server.swap(2, 4));
+        } finally {
+            stop(server);
+        }
+
+        //Restano solo gli swap arrivati dopo la reindicizzazione, e il journal è vuoto.
+        Collections.swap(replaced, 2, 4);
+        assertEquals(replaced, Files.readAllLines(file));
+        assertEquals(16, Files.size(server.getJournalPath()));
+    }
+
+    private static RowSwapServer start(Path file, boolean journal) throws IOException {
+        RowSwapServer server = new RowSwapServer(loopback, rowSwapPort, loopback, freePort(), file.toString());
+        server.setWorkers(0);
+        server.setIndexSnapshotEnabled(false);
+        server.setWatchMode(true);
+        if (journal) {
+            server.setDeferredMode(false, true, 60000, Integer.MAX_VALUE);
+        }
+        server.checkFileValidity();
+        server.countLines();
+        server.initDeferredMode();
+        server.registerOnDiscovery();
+        assertTrue(server.isRegistered());
+        server.start();
+        return server;
+    }
+
+    private static void stop(RowSwapServer server) throws InterruptedException {
+        server.close();
+        server.join(WAIT_MILLIS);
+        assertTrue(server.isFullyClosed());
+    }
+
+    private static void awaitLineCount(RowSwapServer server, int lines) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+
+        while (server.getFileLineCount() != lines && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(lines, server.getFileLineCount());
+    }
+
+    //Righe di lunghezza diversa, così gli swap riscrivono il file.
+    private static List<String> lines(String prefix, int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(prefix + i + "x".repeat(i % 3));
+        }
+        return lines;
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Richieste idempotenti ("#clientId:id#" e frame binari v2): una ritrasmissione riceve la risposta già data
+//senza rieseguire lo swap, un duplicato in esecuzione non viene eseguito, una gestione fallita toglie la voce.
+class RowSwapServerReplyCacheTest {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    @TempDir
+    static Path dir;
+
+    private static DiscoveryServer discovery;
+    private static int rowSwapPort;
+    private static InetAddress loopback;
+
+    @BeforeAll
+    static void startDiscovery() throws IOException {
+        loopback = InetAddress.getLoopbackAddress();
+        rowSwapPort = freePort();
+        discovery = new DiscoveryServer(freePort(), rowSwapPort);
+        discovery.start();
+    }
+
+    @AfterAll
+    static void stopDiscovery() throws InterruptedException {
+        if (discovery != null) {
+            discovery.close();
+            discovery.join();
+        }
+    }
+
+    @Test
+    void textRetransmissionIsReplayed() throws Exception {
+        Path file = dir.resolve("testo.txt");
+        Files.write(file, Arrays.asList("a", "bbb", "cc"));
+        RowSwapServer server = start(file, 0);
+
+        try (DatagramSocket client = client()) {
+            byte[] request = text("#42:7#0,1");
+
+            byte[] first = exchange(client, server, request);
+            assertEquals("#42:7#OK", decodeText(first));
+            byte[] second = exchange(client, server, request);
+            assertArrayEquals(first, second);
+
+            assertEquals(1, server.getMetrics().getDuplicates());
+        } finally {
+            stop(server);
+        }
+
+        //Eseguito due volte, lo swap avrebbe riportato il file com'era.
+        assertEquals(Arrays.asList("bbb", "a", "cc"), Files.readAllLines(file));
+    }
+
+    @Test
+    void binaryRetransmissionIsReplayed() throws Exception {
+        Path file = dir.resolve("binario.txt");
+        Files.write(file, Arrays.asList("a", "bbb", "cc"));
+        RowSwapServer server = start(file, 0);
+
+        try (DatagramSocket client = client()) {
+            byte[] request = swapFrame(9, 42, 0, 2);
+
+            byte[] first = exchange(client, server, request);
+            ByteBuffer reply = ByteBuffer.wrap(first);
+            assertEquals(Protocol.OP_SWAP, Protocol.getOpcode(reply));
+            assertEquals(Protocol.STATUS_OK, Protocol.getStatus(reply));
+            assertEquals(9, Protocol.getRequestId(reply));
+            byte[] second = exchange(client, server, request);
+            assertArrayEquals(first, second);
+
+            //Stesso requestId ma altro client: è una richiesta diversa.
+            exchange(client, server, swapFrame(9, 43, 0, 1));
+
+            assertEquals(1, server.getMetrics().getDuplicates());
+        } finally {
+            stop(server);
+        }
+
+        assertEquals(Arrays.asList("bbb", "cc", "a"), Files.readAllLines(file));
+    }
+
+    @Test
+    void inFlightDuplicateIsNotExecuted() throws Exception {
+        //File grande e righe di lunghezza diversa: lo swap riscrive tutto il file e dura abbastanza
+        //perchè il duplicato arrivi (a un altro worker) mentre l'originale è in esecuzione.
+        Path file = dir.resolve("grande.txt");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 400000; i++) {
+            lines.add("riga " + i + "-".repeat(i % 40));
+        }
+        Files.write(file, lines);
+        RowSwapServer server = start(file, 8);
+        int last = lines.size() - 1;
+
+        try (DatagramSocket client = client()) {
+            byte[] request = text("#42:1#0," + last);
+            send(client, server, request);
+            send(client, server, request);
+
+            assertEquals("#42:1#OK", decodeText(receive(client)));
+            //Il duplicato non ha risposta propria: al più arriva quella in cache, se è stato ricevuto dopo.
+            client.setSoTimeout(500);
+            try {
+                assertEquals("#42:1#OK", decodeText(receive(client)));
+            } catch (SocketTimeoutException e) {
+                //nessuna seconda risposta
+            }
+
+            assertEquals(1, server.getMetrics().getDuplicates());
+        } finally {
+            stop(server);
+        }
+
+        Collections.swap(lines, 0, last);
+        assertEquals(lines, Files.readAllLines(file));
+    }
+
+    @Test
+    void abortedEntryIsDropped() {
+        RowSwapServer.ReplyCache cache = new RowSwapServer.ReplyCache(16, 60000);
+        byte[] reply = {1, 2, 3};
+
+        assertNull(cache.begin(1, 1));
+        assertSame(RowSwapServer.ReplyCache.IN_PROGRESS, cache.begin(1, 1));
+
+        //Gestione fallita: la ritrasmissione va eseguita di nuovo.
+        cache.abort(1, 1);
+        assertNull(cache.begin(1, 1));
+
+        //Una risposta già data non viene tolta.
+        cache.complete(1, 1, reply);
+        cache.abort(1, 1);
+        assertSame(reply, cache.begin(1, 1));
+
+        assertNull(cache.begin(2, 1));
+    }
+
+    @Test
+    void entriesExpireAndAreEvicted() throws InterruptedException {
+        RowSwapServer.ReplyCache full = new RowSwapServer.ReplyCache(2, 60000);
+        assertNull(full.begin(1, 1));
+        assertNull(full.begin(1, 2));
+        assertNull(full.begin(1, 3));
+        //La più vecchia è uscita: la sua ritrasmissione viene rieseguita.
+        assertNull(full.begin(1, 1));
+
+        RowSwapServer.ReplyCache expiring = new RowSwapServer.ReplyCache(16, 20);
+        byte[] reply = {1};
+        assertNull(expiring.begin(1, 1));
+        expiring.complete(1, 1, reply);
+        assertSame(reply, expiring.begin(1, 1));
+        //Scaduta la voce, la richiesta torna nuova.
+        Thread.sleep(50);
+        assertNull(expiring.begin(1, 1));
+    }
+
+    private static RowSwapServer start(Path file, int workers) throws IOException {
+        RowSwapServer server = new RowSwapServer(loopback, rowSwapPort, loopback, freePort(), file.toString());
+        server.setWorkers(workers);
+        server.setIndexSnapshotEnabled(false);
+        server.setReplyCache(64, 60000);
+        server.checkFileValidity();
+        server.countLines();
+        server.registerOnDiscovery();
+        assertTrue(server.isRegistered());
+        server.start();
+        return server;
+    }
+
+    private static void stop(RowSwapServer server) throws InterruptedException {
+        server.close();
+        server.join(10000);
+        assertTrue(server.isFullyClosed());
+    }
+
+    private static DatagramSocket client() throws IOException {
+        DatagramSocket client = new DatagramSocket(0, loopback);
+        client.setSoTimeout(TIMEOUT_MILLIS);
+        return client;
+    }
+
+    private static void send(DatagramSocket client, RowSwapServer server, byte[] request) throws IOException {
+        client.send(new DatagramPacket(request, request.length, loopback, server.getPortRS()));
+    }
+
+    private static byte[] receive(DatagramSocket client) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[65507], 65507);
+        client.receive(packet);
+        return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+
+    private static byte[] exchange(DatagramSocket client, RowSwapServer server, byte[] request) throws IOException {
+        send(client, server, request);
+        return receive(client);
+    }
+
+    private static byte[] text(String request) throws IOException {
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream(); DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeUTF(request);
+            data.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    private static String decodeText(byte[] reply) throws IOException {
+        try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(reply))) {
+            return data.readUTF();
+        }
+    }
+
+    //Come RSClient.swapFrame: frame v2 con clientId.
+    private static byte[] swapFrame(int id, long clientId, int line1, int line2) {
+        ByteBuffer frame = ByteBuffer.allocate(Protocol.headerSize(clientId) + Protocol.varIntSize(line1) + Protocol.varIntSize(line2));
+        Protocol.putHeader(frame, Protocol.OP_SWAP, Protocol.STATUS_OK, id, clientId);
+        Protocol.putVarInt(frame, line1);
+        Protocol.putVarInt(frame, line2);
+        return frame.array();
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}